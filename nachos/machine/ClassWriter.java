@@ -0,0 +1,382 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * A minimal writer for Java class files, with just enough of the format to
+ * generate small classes at run time: a constant pool of strings, classes,
+ * methods and integers, and methods with straight-line code and forward or
+ * backward jumps.
+ *
+ * <p>
+ * Classes are written with version 49 (Java 5), which lets the JVM verify them
+ * without stack map frames. The caller is responsible for emitting well-formed
+ * code and for giving each method a large enough stack.
+ */
+final class ClassWriter {
+	/**
+	 * Start writing a new public class.
+	 *
+	 * @param name      the internal name of the class, e.g.
+	 *                  <tt>nachos/machine/Foo</tt>.
+	 * @param superName the internal name of its superclass.
+	 */
+	public ClassWriter(String name, String superName) {
+		this.name = name;
+
+		thisClass = classRef(name);
+		superClass = classRef(superName);
+	}
+
+	/**
+	 * Return the constant pool index of a UTF-8 string, adding it if necessary.
+	 *
+	 * @param s the string.
+	 * @return its constant pool index.
+	 */
+	public int utf8(String s) {
+		Integer index = constants.get("U" + s);
+		if (index != null)
+			return index;
+
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		pool.writeByte(1);
+		pool.writeShort(bytes.length);
+		pool.write(bytes);
+		return addConstant("U" + s);
+	}
+
+	/**
+	 * Return the constant pool index of a class reference.
+	 *
+	 * @param internalName the internal name of the class.
+	 * @return its constant pool index.
+	 */
+	public int classRef(String internalName) {
+		Integer index = constants.get("C" + internalName);
+		if (index != null)
+			return index;
+
+		int nameIndex = utf8(internalName);
+		pool.writeByte(7);
+		pool.writeShort(nameIndex);
+		return addConstant("C" + internalName);
+	}
+
+	/**
+	 * Return the constant pool index of a method reference.
+	 *
+	 * @param owner      the internal name of the class declaring the method.
+	 * @param name       the name of the method.
+	 * @param descriptor the method descriptor.
+	 * @return its constant pool index.
+	 */
+	public int methodRef(String owner, String name, String descriptor) {
+		String key = "M" + owner + "." + name + descriptor;
+		Integer index = constants.get(key);
+		if (index != null)
+			return index;
+
+		int classIndex = classRef(owner);
+		int nameIndex = utf8(name);
+		int descriptorIndex = utf8(descriptor);
+
+		pool.writeByte(12);
+		pool.writeShort(nameIndex);
+		pool.writeShort(descriptorIndex);
+		int nameAndType = addConstant("N" + name + descriptor);
+
+		pool.writeByte(10);
+		pool.writeShort(classIndex);
+		pool.writeShort(nameAndType);
+		return addConstant(key);
+	}
+
+	/**
+	 * Return the constant pool index of an integer constant.
+	 *
+	 * @param value the integer.
+	 * @return its constant pool index.
+	 */
+	public int intConst(int value) {
+		Integer index = constants.get("I" + value);
+		if (index != null)
+			return index;
+
+		pool.writeByte(3);
+		pool.writeInt(value);
+		return addConstant("I" + value);
+	}
+
+	private int addConstant(String key) {
+		Lib.assertTrue(poolCount < 0xFFFF);
+
+		int index = poolCount++;
+		constants.put(key, index);
+		return index;
+	}
+
+	/**
+	 * Add a method to the class.
+	 *
+	 * @param access     the method's access flags.
+	 * @param name       the name of the method.
+	 * @param descriptor the method descriptor.
+	 * @param code       the method body. Must not be modified afterwards.
+	 */
+	public void addMethod(int access, String name, String descriptor, Code code) {
+		code.resolveJumps();
+
+		Buffer method = new Buffer();
+		method.writeShort(access);
+		method.writeShort(utf8(name));
+		method.writeShort(utf8(descriptor));
+
+		// one attribute: Code
+		method.writeShort(1);
+		method.writeShort(utf8("Code"));
+		method.writeInt(12 + code.bytes.length());
+		method.writeShort(code.maxStack);
+		method.writeShort(code.maxLocals);
+		method.writeInt(code.bytes.length());
+		method.write(code.bytes.toByteArray());
+		method.writeShort(0); // no exception table
+		method.writeShort(0); // no attributes
+
+		methods.add(method.toByteArray());
+	}
+
+	/**
+	 * Return the class file.
+	 *
+	 * @return the bytes of the class file.
+	 */
+	public byte[] toByteArray() {
+		Buffer out = new Buffer();
+
+		out.writeInt(0xCAFEBABE);
+		out.writeShort(0); // minor version
+		out.writeShort(49); // major version
+
+		// constant pool index 0 is never used
+		out.writeShort(poolCount);
+		out.write(pool.toByteArray());
+
+		out.writeShort(accPublic | accFinal | accSuper);
+		out.writeShort(thisClass);
+		out.writeShort(superClass);
+		out.writeShort(0); // no interfaces
+		out.writeShort(0); // no fields
+
+		out.writeShort(methods.size());
+		for (byte[] method : methods)
+			out.write(method);
+
+		out.writeShort(0); // no attributes
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Return the internal name of this class.
+	 *
+	 * @return the internal name of this class.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Start an empty method body, to be added to this class with
+	 * <tt>addMethod()</tt>.
+	 *
+	 * @param maxStack  the largest number of words on the operand stack.
+	 * @param maxLocals the number of local variable words, including the
+	 *                  arguments.
+	 * @return the new method body.
+	 */
+	public Code newCode(int maxStack, int maxLocals) {
+		return new Code(maxStack, maxLocals);
+	}
+
+	/**
+	 * The body of a method under construction.
+	 */
+	public class Code {
+		private Code(int maxStack, int maxLocals) {
+			this.maxStack = maxStack;
+			this.maxLocals = maxLocals;
+		}
+
+		/**
+		 * Append an instruction that has no operands.
+		 *
+		 * @param opcode the opcode.
+		 */
+		public void op(int opcode) {
+			bytes.writeByte(opcode);
+		}
+
+		/**
+		 * Append an instruction with a one-byte operand, such as a local
+		 * variable index.
+		 *
+		 * @param opcode  the opcode.
+		 * @param operand the operand.
+		 */
+		public void op1(int opcode, int operand) {
+			Lib.assertTrue(operand >= 0 && operand < 0x100);
+
+			bytes.writeByte(opcode);
+			bytes.writeByte(operand);
+		}
+
+		/**
+		 * Append an instruction with a two-byte operand, such as a constant pool
+		 * index.
+		 *
+		 * @param opcode  the opcode.
+		 * @param operand the operand.
+		 */
+		public void op2(int opcode, int operand) {
+			Lib.assertTrue(operand >= 0 && operand < 0x10000);
+
+			bytes.writeByte(opcode);
+			bytes.writeShort(operand);
+		}
+
+		/**
+		 * Append the shortest instruction that pushes an integer constant.
+		 *
+		 * @param value the constant.
+		 */
+		public void pushInt(int value) {
+			if (value >= -1 && value <= 5)
+				op(ICONST_0 + value);
+			else if (value == (byte) value)
+				op1(BIPUSH, value & 0xFF);
+			else if (value == (short) value)
+				op2(SIPUSH, value & 0xFFFF);
+			else
+				op2(LDC_W, intConst(value));
+		}
+
+		/**
+		 * Create a new label, which can be jumped to once it is placed.
+		 *
+		 * @return the new label.
+		 */
+		public int newLabel() {
+			labels.add(-1);
+			return labels.size() - 1;
+		}
+
+		/**
+		 * Place a label at the current position.
+		 *
+		 * @param label the label.
+		 */
+		public void mark(int label) {
+			Lib.assertTrue(labels.get(label) == -1);
+
+			labels.set(label, bytes.length());
+		}
+
+		/**
+		 * Append a jump or conditional branch to a label.
+		 *
+		 * @param opcode the opcode, e.g. <tt>GOTO</tt> or <tt>IFEQ</tt>.
+		 * @param label  the label to jump to.
+		 */
+		public void jump(int opcode, int label) {
+			jumps.add(new int[] { bytes.length(), label });
+			op2(opcode, 0);
+		}
+
+		private void resolveJumps() {
+			for (int[] jump : jumps) {
+				int target = labels.get(jump[1]);
+				Lib.assertTrue(target != -1);
+
+				int offset = target - jump[0];
+				Lib.assertTrue(offset == (short) offset);
+
+				bytes.setShort(jump[0] + 1, offset);
+			}
+			jumps.clear();
+		}
+
+		private Buffer bytes = new Buffer();
+		private Vector<Integer> labels = new Vector<Integer>();
+		private Vector<int[]> jumps = new Vector<int[]>();
+		private int maxStack, maxLocals;
+	}
+
+	/** A growable big-endian byte buffer. */
+	private static class Buffer {
+		void writeByte(int b) {
+			if (length == data.length) {
+				byte[] larger = new byte[data.length * 2];
+				System.arraycopy(data, 0, larger, 0, length);
+				data = larger;
+			}
+			data[length++] = (byte) b;
+		}
+
+		void writeShort(int s) {
+			writeByte(s >> 8);
+			writeByte(s);
+		}
+
+		void writeInt(int i) {
+			writeShort(i >> 16);
+			writeShort(i);
+		}
+
+		void write(byte[] b) {
+			for (int i = 0; i < b.length; i++)
+				writeByte(b[i]);
+		}
+
+		void setShort(int position, int s) {
+			data[position] = (byte) (s >> 8);
+			data[position + 1] = (byte) s;
+		}
+
+		int length() {
+			return length;
+		}
+
+		byte[] toByteArray() {
+			byte[] result = new byte[length];
+			System.arraycopy(data, 0, result, 0, length);
+			return result;
+		}
+
+		private byte[] data = new byte[256];
+		private int length = 0;
+	}
+
+	private String name;
+	private int thisClass, superClass;
+	private Buffer pool = new Buffer();
+	private int poolCount = 1;
+	private Hashtable<String, Integer> constants = new Hashtable<String, Integer>();
+	private Vector<byte[]> methods = new Vector<byte[]>();
+
+	/** Access flags. */
+	public static final int accPublic = 0x0001, accFinal = 0x0010, accSuper = 0x0020;
+
+	/** Opcodes. */
+	public static final int ICONST_M1 = 0x02, ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13,
+			ILOAD = 0x15, LLOAD = 0x16, ALOAD = 0x19, IALOAD = 0x2E, ISTORE = 0x36, LSTORE = 0x37, IASTORE = 0x4F,
+			IADD = 0x60, ISUB = 0x64, LMUL = 0x69, ISHL = 0x78, LSHL = 0x79, ISHR = 0x7A, IUSHR = 0x7C, LUSHR = 0x7D,
+			IAND = 0x7E, IOR = 0x80, IXOR = 0x82, I2L = 0x85, L2I = 0x88, I2B = 0x91, I2S = 0x93, IFEQ = 0x99,
+			IFNE = 0x9A, IFLT = 0x9B, IFGE = 0x9C, IFGT = 0x9D, IFLE = 0x9E, IF_ICMPEQ = 0x9F, IF_ICMPNE = 0xA0,
+			IF_ICMPLT = 0xA1, IF_ICMPGE = 0xA2, GOTO = 0xA7, IRETURN = 0xAC, RETURN = 0xB1, INVOKEVIRTUAL = 0xB6,
+			INVOKESPECIAL = 0xB7;
+}
@@ -5,7 +5,7 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.io.EOFException;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 /**
  * A <tt>CoffSection</tt> manages a single section within a COFF executable.
@@ -180,7 +180,8 @@ public class CoffSection {
 	Lib.assertTrue(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
 
 	int pageSize = Processor.pageSize;
-	byte[] memory = Machine.processor().getMemory();
+	ByteBuffer memory = Machine.processor().getMemoryBuffer();
+	byte[] page = new byte[pageSize];
 	int paddr = ppn*pageSize;
 	int faddr = contentOffset + spn*pageSize;
 	int initlen;
@@ -197,9 +198,13 @@ public class CoffSection {
 	    initlen = pageSize;
 
 	if (initlen > 0)
-	    Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+	    Lib.strictReadFile(file, faddr, page, 0, initlen);
 
-	Arrays.fill(memory, paddr+initlen, paddr+pageSize, (byte) 0);
+	// the rest of the page stays zero-filled
+	memory.position(paddr);
+	memory.put(page);
+
+	Machine.processor().invalidatePage(ppn);
     }
 
     /** The COFF object to which this section belongs. */
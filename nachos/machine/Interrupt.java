@@ -6,7 +6,10 @@ import nachos.security.*;
 
 import java.util.TreeSet;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.PriorityQueue;
 import java.util.SortedSet;
+import java.util.concurrent.Phaser;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -38,6 +41,34 @@ import java.util.SortedSet;
  * simulation (even with randomized time slices), but it wouldn't work on real
  * hardware. But even though Nachos can't always detect when your program would
  * fail in real life, you should still write properly synchronized code.
+ *
+ * <p>
+ * If <tt>Machine.numCores</tt> is more than 1, each core has its own simulated
+ * time, and the cores are run one at a time on the same host thread. The core
+ * that is furthest behind runs until it is <tt>Interrupt.coreSlice</tt> ticks
+ * (default 100) ahead of the next one, and then the simulation moves to
+ * whichever core is now furthest behind, by calling the handler given to
+ * <tt>setSwitchHandler()</tt>. Like an interrupt, this only happens when time
+ * advances, so a core that disables interrupts still runs undisturbed until
+ * it enables them, or spins by calling <tt>spin()</tt>. An interrupt is
+ * delivered once every core has reached the time it is due, to whichever
+ * core gets there last, unless it is for a particular core (such as that
+ * core's timer, or an interprocessor interrupt sent by <tt>sendIPI()</tt>), in
+ * which case it waits for that core. The results depend only on the random
+ * seed, as they do with a single core.
+ *
+ * <p>
+ * If <tt>Interrupt.parallelCores</tt> is set, cores that are running user
+ * programs also run in lockstep epochs, each on its own host thread. Whenever
+ * the simulation switches cores, every core that is waiting to run user
+ * instructions, and has no interrupt waiting for it, runs up to
+ * <tt>Interrupt.epochLength</tt> of them (default 1000) at once, stopping just
+ * before its next interrupt is due. Cores only interact at the ends of
+ * epochs: each takes an exception, or is delivered an interrupt that is not
+ * for a particular core, once the epoch is over, and a core that touches a
+ * physical page another core has touched in the same epoch stops there.
+ * Nachos processes do not share pages, so this keeps the results repeatable,
+ * although they differ from those of running the cores one at a time.
  */
 public final class Interrupt {
 	/**
@@ -52,7 +83,131 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+		if (Config.getBoolean("Interrupt.timingWheel", false))
+			wheel = new TimingWheel();
+		else
+			pending = new TreeSet<PendingInterrupt>();
+
+		numCores = Machine.numCores();
+		if (numCores > 1) {
+			coreSlice = Config.getInteger("Interrupt.coreSlice", 100);
+			Lib.assertTrue(coreSlice > 0, "Interrupt.coreSlice must be positive");
+
+			coreTimes = new long[numCores];
+			// generic arrays cannot be created directly
+			@SuppressWarnings("unchecked")
+			LinkedList<PendingInterrupt>[] interrupts = (LinkedList<PendingInterrupt>[]) new LinkedList<?>[numCores];
+			coreInterrupts = interrupts;
+			for (int core = 0; core < numCores; core++)
+				coreInterrupts[core] = new LinkedList<PendingInterrupt>();
+
+			parallel = Config.getBoolean("Interrupt.parallelCores", false) && Config.getBoolean("Machine.processor");
+			if (parallel)
+				startEpochThreads();
+		}
+	}
+
+	private void startEpochThreads() {
+		epochLength = Config.getInteger("Interrupt.epochLength", 1000);
+		Lib.assertTrue(epochLength > 0, "Interrupt.epochLength must be positive");
+
+		coreInUser = new boolean[numCores];
+		@SuppressWarnings("unchecked")
+		PriorityQueue<Long>[] due = (PriorityQueue<Long>[]) new PriorityQueue<?>[numCores];
+		coreDue = due;
+		for (int core = 0; core < numCores; core++)
+			coreDue[core] = new PriorityQueue<Long>();
+
+		epochCores = new int[numCores];
+		epochBudgets = new int[numCores];
+		epochExecuted = new int[numCores];
+
+		// the simulation thread runs one core's share, and a host thread each of
+		// the others
+		epochPhaser = new Phaser(numCores);
+
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				for (int i = 1; i < numCores; i++) {
+					final int share = i;
+					Thread thread = new Thread(new Runnable() {
+						public void run() {
+							while (true) {
+								epochPhaser.arriveAndAwaitAdvance();
+								runEpochShare(share);
+								epochPhaser.arriveAndAwaitAdvance();
+							}
+						}
+					}, "nachos epoch " + i);
+					thread.setDaemon(true);
+					thread.start();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Set the handler called when the simulation moves to another core, which
+	 * must switch to the thread that core was running. It is called with
+	 * interrupts disabled, after <tt>Machine.currentCore()</tt> and
+	 * <tt>Machine.processor()</tt> have changed, and returns once the simulation
+	 * moves back to this core. Until it is set, only core 0 runs; the other
+	 * cores start at the time it is set.
+	 *
+	 * @param handler the core switch handler.
+	 */
+	public void setSwitchHandler(Runnable handler) {
+		Lib.assertTrue(numCores > 1 && switchHandler == null);
+
+		switchHandler = handler;
+
+		for (int core = 0; core < numCores; core++)
+			coreTimes[core] = privilege.stats.totalTicks;
+		updateSwitchTime();
+	}
+
+	/**
+	 * Set the handler for interprocessor interrupts, which is called on the core
+	 * an interrupt was sent to.
+	 *
+	 * @param handler the interprocessor interrupt handler.
+	 */
+	public void setIPIHandler(Runnable handler) {
+		ipiHandler = handler;
+	}
+
+	/**
+	 * Send an interprocessor interrupt to the specified core. It is delivered
+	 * on that core one tick from now, by its time, or as soon as the core next
+	 * enables interrupts after that.
+	 *
+	 * @param core the core to interrupt.
+	 */
+	public void sendIPI(int core) {
+		Lib.assertTrue(core >= 0 && core < numCores);
+		Lib.assertTrue(ipiHandler != null);
+
+		schedule(1, "IPI", ipiHandler, core);
+	}
+
+	/**
+	 * Advance the simulated time by one kernel tick without changing the
+	 * interrupt status, as a processor does while it busy-waits. If interrupts
+	 * are enabled, any that are due are delivered as usual. Either way, other
+	 * cores get to run, so a core can wait for one of them to do something.
+	 */
+	public void spin() {
+		if (enabled) {
+			tick(true);
+			return;
+		}
+
+		Stats stats = privilege.stats;
+		stats.kernelTicks += Stats.KernelTick;
+		stats.totalTicks += Stats.KernelTick;
+
+		if (stats.totalTicks >= switchTime)
+			switchCore(false);
 	}
 
 	/**
@@ -119,14 +274,151 @@ public final class Interrupt {
 		return !enabled;
 	}
 
+	/**
+	 * Skip the simulated time forward to the last kernel tick before the next
+	 * pending interrupt is due. This has the same effect as repeatedly enabling
+	 * and disabling interrupts until just before then, so when interrupts are
+	 * next enabled, the interrupt occurs at exactly the time it otherwise would.
+	 * For use by an idle kernel, which has nothing to do until an interrupt
+	 * occurs. Interrupts must be disabled.
+	 */
+	public void idle() {
+		Lib.assertTrue(disabled());
+
+		long next = nextPendingTime();
+		if (next == Long.MAX_VALUE)
+			return;
+
+		Stats stats = privilege.stats;
+		long skipped = (next - stats.totalTicks - 1) / Stats.KernelTick * Stats.KernelTick;
+		if (skipped <= 0)
+			return;
+
+		stats.kernelTicks += skipped;
+		stats.totalTicks += skipped;
+
+		Lib.debug(dbgInt, "Idling until time = " + stats.totalTicks);
+	}
+
+	/**
+	 * Return the time at which the earliest pending interrupt is due.
+	 *
+	 * @return the time of the next pending interrupt, or <tt>Long.MAX_VALUE</tt>
+	 *         if there are none.
+	 */
+	long nextPendingTime() {
+		if (numCores > 1)
+			return nextCoreTime();
+
+		return firstTime();
+	}
+
+	private long firstTime() {
+		if (wheel != null)
+			return wheel.firstTime();
+
+		if (pending.isEmpty())
+			return Long.MAX_VALUE;
+
+		return pending.first().time;
+	}
+
+	/**
+	 * Return the time at which this core next has to stop: when an interrupt
+	 * that it can deliver is due, or when it is time to switch cores.
+	 */
+	private long nextCoreTime() {
+		if (!coreInterrupts[currentCore].isEmpty())
+			return privilege.stats.totalTicks;
+
+		long next = switchTime;
+
+		// an interrupt due after another core's time waits for that core
+		long first = firstTime();
+		if (first <= otherTime)
+			next = Math.min(next, first);
+
+		return next;
+	}
+
+	/**
+	 * Advance the simulated time by the specified number of user instructions at
+	 * once. This has the same effect as calling <tt>tick(false)</tt> that many
+	 * times, provided that no interrupt is due before the last of those ticks;
+	 * the caller must ensure this, using <tt>nextPendingTime()</tt>.
+	 *
+	 * @param count the number of user instructions executed.
+	 */
+	void tickUser(int count) {
+		Lib.assertTrue(count >= 0);
+
+		// the debugging output shows every tick
+		if (Lib.test(dbgInt)) {
+			for (int i = 0; i < count; i++)
+				tick(false);
+			return;
+		}
+
+		if (count == 0)
+			return;
+
+		Stats stats = privilege.stats;
+
+		stats.userTicks += (long) count * Stats.UserTick;
+		stats.totalTicks += (long) count * Stats.UserTick;
+
+		// an overdue interrupt is only allowed after a single instruction
+		Lib.assertTrue(count == 1 || nextPendingTime() > stats.totalTicks - Stats.UserTick);
+
+		enabled = false;
+		checkIfDue(false);
+		enabled = true;
+	}
+
+	/**
+	 * Schedule an interrupt to be delivered on the specified core. It is added
+	 * to the pending interrupts like any other, and if it comes due while
+	 * another core is running, it waits there until its core runs.
+	 */
+	private void schedule(long when, final String type, final Runnable handler, final int core) {
+		if (numCores == 1) {
+			schedule(when, type, handler);
+			return;
+		}
+
+		// epochs must stop short of it
+		final long time = privilege.stats.totalTicks + when;
+		if (parallel)
+			coreDue[core].add(time);
+
+		schedule(when, type, new Runnable() {
+			public void run() {
+				if (parallel)
+					coreDue[core].remove(time);
+
+				if (core == currentCore) {
+					handler.run();
+				} else {
+					Lib.debug(dbgInt, "    (for core " + core + ")");
+					coreInterrupts[core].add(new PendingInterrupt(privilege.stats.totalTicks, type, handler));
+				}
+			}
+		});
+	}
+
 	private void schedule(long when, String type, Runnable handler) {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
 		Lib.debug(dbgInt, "Scheduling the " + type + " interrupt handler at time = " + time);
 
+		if (wheel != null) {
+			wheel.add(time, type, handler);
+			return;
+		}
+
+		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 		pending.add(toOccur);
 	}
 
@@ -145,11 +437,18 @@ public final class Interrupt {
 			System.out.println("== Tick " + stats.totalTicks + " ==");
 
 		enabled = false;
-		checkIfDue();
+		checkIfDue(inKernelMode);
 		enabled = true;
 	}
 
-	private void checkIfDue() {
+	/**
+	 * Deliver any interrupts that are due.
+	 *
+	 * @param inKernelMode <tt>false</tt> if called from the user instruction
+	 *                     loop, which carries on running user instructions as
+	 *                     soon as this returns.
+	 */
+	private void checkIfDue(boolean inKernelMode) {
 		long time = privilege.stats.totalTicks;
 
 		Lib.assertTrue(disabled());
@@ -157,11 +456,18 @@ public final class Interrupt {
 		if (Lib.test(dbgInt))
 			print();
 
-		if (pending.isEmpty())
+		if (nextPendingTime() > time)
+			return;
+
+		if (numCores > 1) {
+			checkCores(!inKernelMode);
 			return;
+		}
 
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (wheel != null) {
+			checkWheel(time);
 			return;
+		}
 
 		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
@@ -182,13 +488,212 @@ public final class Interrupt {
 		Lib.debug(dbgInt, "  (end of list)");
 	}
 
+	private void checkWheel(long time) {
+		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
+
+		while (wheel.firstTime() <= time) {
+			String type = wheel.firstType();
+			Runnable handler = wheel.firstHandler();
+			wheel.removeFirst();
+
+			if (privilege.processor != null)
+				privilege.processor.flushPipe();
+
+			Lib.debug(dbgInt, "  " + type);
+
+			handler.run();
+		}
+
+		Lib.debug(dbgInt, "  (end of list)");
+	}
+
+	/**
+	 * Deliver the interrupts that are due on this core, then switch cores if it
+	 * is time to. A handler may switch threads, and the thread that resumes may
+	 * have been on another core, so the time is read afresh each time around.
+	 */
+	private void checkCores(boolean inUser) {
+		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + privilege.stats.totalTicks + " on core "
+				+ currentCore);
+
+		while (true) {
+			PendingInterrupt next;
+			LinkedList<PendingInterrupt> waiting = coreInterrupts[currentCore];
+
+			if (!waiting.isEmpty()) {
+				next = waiting.removeFirst();
+			} else {
+				long time = Math.min(privilege.stats.totalTicks, otherTime);
+				if (firstTime() > time)
+					break;
+
+				if (wheel != null) {
+					next = new PendingInterrupt(wheel.firstTime(), wheel.firstType(), wheel.firstHandler());
+					wheel.removeFirst();
+				} else {
+					next = pending.pollFirst();
+				}
+			}
+
+			if (privilege.processor != null)
+				privilege.processor.flushPipe();
+
+			Lib.debug(dbgInt, "  " + next.type);
+
+			next.handler.run();
+		}
+
+		Lib.debug(dbgInt, "  (end of list)");
+
+		if (privilege.stats.totalTicks >= switchTime)
+			switchCore(inUser);
+	}
+
+	/**
+	 * Move the simulation to the core that is furthest behind, and return once
+	 * it moves back to this one. If cores are run in parallel, run an epoch
+	 * first, after which this core may still be the furthest behind. Interrupts
+	 * must be disabled.
+	 *
+	 * @param inUser <tt>true</tt> if this core carries on running user
+	 *               instructions once this returns.
+	 */
+	private void switchCore(boolean inUser) {
+		Lib.assertTrue(disabled());
+
+		Stats stats = privilege.stats;
+
+		coreTimes[currentCore] = stats.totalTicks;
+		if (parallel) {
+			coreInUser[currentCore] = inUser;
+			runEpoch();
+		}
+
+		int next = currentCore;
+		long nextTime = coreTimes[currentCore];
+		for (int core = 0; core < numCores; core++) {
+			if (core != currentCore && coreTimes[core] < nextTime) {
+				next = core;
+				nextTime = coreTimes[core];
+			}
+		}
+
+		if (next == currentCore) {
+			updateSwitchTime();
+			return;
+		}
+
+		Lib.debug(dbgInt, "Switching from core " + currentCore + " at time = " + stats.totalTicks + " to core "
+				+ next + " at time = " + nextTime);
+
+		currentCore = next;
+		stats.totalTicks = nextTime;
+		updateSwitchTime();
+
+		Machine.setCurrentCore(next);
+		switchHandler.run();
+	}
+
+	/**
+	 * Run an epoch of every core that is waiting to run user instructions, with
+	 * no interrupt waiting for it, if there are at least two. Each one stops an
+	 * instruction short of its next interrupt, so that the instruction whose
+	 * tick makes it due is run on its own afterwards, and the interrupt is
+	 * delivered on time. Their ticks are charged once they have all finished.
+	 */
+	private void runEpoch() {
+		Stats stats = privilege.stats;
+
+		numEpochCores = 0;
+		for (int core = 0; core < numCores; core++) {
+			if (!coreInUser[core] || !coreInterrupts[core].isEmpty() || !Machine.processor(core).canRunEpoch())
+				continue;
+
+			long limit = coreTimes[core] + (long) epochLength * Stats.UserTick;
+			Long due = coreDue[core].peek();
+			if (due != null)
+				limit = Math.min(limit, due);
+
+			long budget = (limit - coreTimes[core] - 1) / Stats.UserTick;
+			if (budget > 0) {
+				epochCores[numEpochCores++] = core;
+				epochBudgets[core] = (int) budget;
+			}
+		}
+
+		if (numEpochCores < 2)
+			return;
+
+		Lib.debug(dbgInt, "Running an epoch of " + numEpochCores + " cores at time = " + stats.totalTicks);
+
+		epochFailure = null;
+
+		epochPhaser.arriveAndAwaitAdvance();
+		runEpochShare(0);
+		epochPhaser.arriveAndAwaitAdvance();
+
+		if (epochFailure instanceof RuntimeException)
+			throw (RuntimeException) epochFailure;
+		if (epochFailure instanceof Error)
+			throw (Error) epochFailure;
+
+		for (int i = 0; i < numEpochCores; i++) {
+			int core = epochCores[i];
+			Machine.processor(core).endEpoch();
+
+			long ticks = (long) epochExecuted[core] * Stats.UserTick;
+			coreTimes[core] += ticks;
+			stats.userTicks += ticks;
+		}
+
+		stats.totalTicks = coreTimes[currentCore];
+	}
+
+	/**
+	 * Run one core's part of the current epoch, if there is a core for this
+	 * host thread.
+	 *
+	 * @param share which of the cores in the epoch to run.
+	 */
+	private void runEpochShare(int share) {
+		if (share >= numEpochCores)
+			return;
+
+		int core = epochCores[share];
+		try {
+			epochExecuted[core] = Machine.processor(core).runEpoch(epochBudgets[core]);
+		} catch (Throwable e) {
+			epochExecuted[core] = 0;
+			epochFailure = e;
+		}
+	}
+
+	/**
+	 * Find the earliest time of the cores other than the current one, and so
+	 * when the current core should stop for another.
+	 */
+	private void updateSwitchTime() {
+		otherTime = Long.MAX_VALUE;
+		for (int core = 0; core < numCores; core++) {
+			if (core != currentCore)
+				otherTime = Math.min(otherTime, coreTimes[core]);
+		}
+
+		switchTime = otherTime + coreSlice;
+	}
+
 	private void print() {
 		System.out.println("Time: " + privilege.stats.totalTicks + ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
-			System.out.println("  " + toOccur.type + ", scheduled at " + toOccur.time);
+		if (wheel != null) {
+			for (TimingWheel.Event toOccur : wheel.events())
+				System.out.println("  " + toOccur.type + ", scheduled at " + toOccur.time);
+		} else {
+			for (Iterator i = pending.iterator(); i.hasNext();) {
+				PendingInterrupt toOccur = (PendingInterrupt) i.next();
+				System.out.println("  " + toOccur.type + ", scheduled at " + toOccur.time);
+			}
 		}
 
 		System.out.println("  (end of list)");
@@ -231,14 +736,50 @@ public final class Interrupt {
 
 	private boolean enabled;
 	private TreeSet<PendingInterrupt> pending;
+	/** Used instead of <tt>pending</tt> if <tt>Interrupt.timingWheel</tt> is set. */
+	private TimingWheel wheel;
 
 	private static final char dbgInt = 'i';
 
+	private int numCores;
+	/** The core running now, whose time is <tt>stats.totalTicks</tt>. */
+	private int currentCore = 0;
+	/** The time of every other core, as of when it last ran. */
+	private long[] coreTimes;
+	/** The earliest time of any other core. */
+	private long otherTime = Long.MAX_VALUE;
+	/** When the current core is far enough ahead to switch to another. */
+	private long switchTime = Long.MAX_VALUE;
+	private int coreSlice;
+	/** Interrupts for each core that came due while another core was running. */
+	private LinkedList<PendingInterrupt>[] coreInterrupts;
+	private Runnable switchHandler = null;
+	private Runnable ipiHandler = null;
+
+	/** <tt>true</tt> if cores running user programs run in parallel epochs. */
+	private boolean parallel = false;
+	private int epochLength;
+	/** Whether each core that is not running was switched away from user code. */
+	private boolean[] coreInUser;
+	/** The times of the pending interrupts for each core. */
+	private PriorityQueue<Long>[] coreDue;
+	/** The cores in the current epoch, and what each may and did run. */
+	private int[] epochCores;
+	private int numEpochCores = 0;
+	private int[] epochBudgets;
+	private int[] epochExecuted;
+	private Phaser epochPhaser;
+	private volatile Throwable epochFailure;
+
 	private class InterruptPrivilege implements Privilege.InterruptPrivilege {
 		public void schedule(long when, String type, Runnable handler) {
 			Interrupt.this.schedule(when, type, handler);
 		}
 
+		public void schedule(long when, String type, Runnable handler, int core) {
+			Interrupt.this.schedule(when, type, handler, core);
+		}
+
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
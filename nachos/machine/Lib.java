@@ -2,10 +2,13 @@
 
 package nachos.machine;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.nio.ByteOrder;
 import java.security.PrivilegedAction;
 import java.util.Random;
 
@@ -347,6 +350,57 @@ public final class Lib {
         }
     }
 
+    private static final VarHandle shortView = MethodHandles.byteArrayViewVarHandle(short[].class,
+            ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle intView = MethodHandles.byteArrayViewVarHandle(int[].class,
+            ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Load a little-endian byte, halfword or word from an array, in a single
+     * access rather than one byte at a time. Bytes and halfwords are
+     * sign-extended, as by <tt>bytesToInt()</tt>.
+     *
+     * @param array  the array containing the value.
+     * @param offset the offset of the value in the array. Must be a multiple of
+     *               <tt>length</tt>.
+     * @param length the size of the value (must be 1, 2, or 4).
+     * @return the value loaded.
+     */
+    public static int loadAligned(byte[] array, int offset, int length) {
+        switch (length) {
+            case 1:
+                return array[offset];
+            case 2:
+                return (short) shortView.get(array, offset);
+            default:
+                return (int) intView.get(array, offset);
+        }
+    }
+
+    /**
+     * Store a little-endian byte, halfword or word into an array, in a single
+     * access rather than one byte at a time.
+     *
+     * @param array  the array in which to store the value.
+     * @param offset the offset in the array where the value will be stored. Must
+     *               be a multiple of <tt>length</tt>.
+     * @param length the size of the value (must be 1, 2, or 4).
+     * @param value  the value to store.
+     */
+    public static void storeAligned(byte[] array, int offset, int length, int value) {
+        switch (length) {
+            case 1:
+                array[offset] = (byte) value;
+                break;
+            case 2:
+                shortView.set(array, offset, (short) value);
+                break;
+            default:
+                intView.set(array, offset, value);
+                break;
+        }
+    }
+
     /**
      * Convert to a string from a possibly null-terminated array of bytes.
      *
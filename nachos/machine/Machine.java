@@ -159,6 +159,9 @@ public final class Machine {
 	}
 
 	private static void createDevices() {
+		numCores = Config.getInteger("Machine.numCores", 1);
+		Lib.assertTrue(numCores > 0, "Machine.numCores must be positive");
+
 		interrupt = new Interrupt(privilege);
 		timer = new Timer(privilege);
 
@@ -169,6 +172,12 @@ public final class Machine {
 			if (numPhysPages == -1)
 				numPhysPages = Config.getInteger("Processor.numPhysPages");
 			processor = new Processor(privilege, numPhysPages);
+
+			processors = new Processor[numCores];
+			processors[0] = processor;
+			for (int core = 1; core < numCores; core++)
+				processors[core] = new Processor(privilege, processor, core);
+			processor.makeCurrent();
 		}
 
 		if (Config.getBoolean("Machine.console"))
@@ -299,7 +308,8 @@ public final class Machine {
 	}
 
 	/**
-	 * Return the MIPS processor.
+	 * Return the MIPS processor. If there is more than one core, this is the
+	 * processor of the core that is currently running.
 	 *
 	 * @return the MIPS processor, or <tt>null</tt> if it is not present.
 	 */
@@ -307,6 +317,55 @@ public final class Machine {
 		return processor;
 	}
 
+	/**
+	 * Return the number of processor cores, set by <tt>Machine.numCores</tt>
+	 * (default 1). Each core has its own <tt>Processor</tt> and timer, and they
+	 * all share physical memory and the other devices. The cores are simulated
+	 * one at a time, as <tt>Interrupt</tt> describes.
+	 *
+	 * @return the number of cores.
+	 */
+	public static int numCores() {
+		return numCores;
+	}
+
+	/**
+	 * Return the core that is currently running, from 0 to
+	 * <tt>numCores() - 1</tt>.
+	 *
+	 * @return the current core.
+	 */
+	public static int currentCore() {
+		return currentCore;
+	}
+
+	/**
+	 * Return the processor of the specified core, whether or not it is running.
+	 * A kernel that leaves entries in the TLBs of cores it is not running on
+	 * uses this to invalidate them.
+	 *
+	 * @param core the core.
+	 * @return its processor.
+	 */
+	public static Processor processor(int core) {
+		return processors[core];
+	}
+
+	/**
+	 * Make the specified core the current one. Called by <tt>Interrupt</tt>
+	 * when it moves the simulation to another core.
+	 *
+	 * @param core the core that is about to run.
+	 */
+	static void setCurrentCore(int core) {
+		currentCore = core;
+
+		if (processors != null) {
+			processor = processors[core];
+			processor.makeCurrent();
+		}
+	}
+
 	/**
 	 * Return the hardware console.
 	 *
@@ -347,6 +406,10 @@ public final class Machine {
 	private static Timer timer = null;
 	private static ElevatorBank bank = null;
 	private static Processor processor = null;
+	/** The processor of each core, if there is a processor. */
+	private static Processor[] processors = null;
+	private static int numCores = 1;
+	private static int currentCore = 0;
 	private static SerialConsole console = null;
 	private static FileSystem stubFileSystem = null;
 	private static NetworkLink networkLink = null;
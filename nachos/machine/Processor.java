@@ -4,6 +4,20 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -30,7 +44,10 @@ public final class Processor {
 		System.out.print(" processor");
 
 		this.privilege = privilege;
-		privilege.processor = new ProcessorPrivilege();
+		processorPrivilege = new ProcessorPrivilege();
+		privilege.processor = processorPrivilege;
+		stats = privilege.stats;
+		boot = this;
 
 		Class<?> clsKernel = Lib.loadClass(Config.getString("Kernel.kernel"));
 		Class<?> clsVMKernel = Lib.tryLoadClass("nachos.vm.VMKernel");
@@ -42,17 +59,131 @@ public final class Processor {
 		for (int i = 0; i < numUserRegisters; i++)
 			registers[i] = 0;
 
-		mainMemory = new byte[pageSize * numPhysPages];
+		Lib.assertTrue(numPhysPages <= Integer.MAX_VALUE / pageSize, "too many physical pages");
+
+		String memoryType = Config.getString("Processor.memory", "heap");
+		if (memoryType.equals("heap")) {
+			mainMemory = new byte[pageSize * numPhysPages];
+			memoryBuffer = ByteBuffer.wrap(mainMemory);
+		} else if (memoryType.equals("direct")) {
+			memoryBuffer = ByteBuffer.allocateDirect(pageSize * numPhysPages);
+		} else if (memoryType.equals("mapped")) {
+			memoryBuffer = mapMemory(Config.getString("Processor.memoryFile"), pageSize * numPhysPages);
+		} else {
+			Lib.assertNotReached("Processor.memory must be heap, direct or mapped");
+		}
+		memoryBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		decodedPages = new int[numPhysPages][];
+
+		batchTicks = Config.getBoolean("Processor.batchTicks", false);
+
+		translateBlocks = Config.getBoolean("Processor.translateBlocks", false);
+		if (translateBlocks) {
+			blockPages = new BasicBlock[numPhysPages][];
+			blockSources = new int[numPhysPages][];
+
+			jit = Config.getBoolean("Processor.jit", false);
+			jitThreshold = Config.getInteger("Processor.jitThreshold", 100);
+			Lib.assertTrue(jitThreshold > 0);
+		}
+
+		tracing = Lib.test(dbgProcessor);
+
+		if (Machine.numCores() > 1) {
+			pageOwners = new AtomicIntegerArray(numPhysPages);
+			for (int ppn = 0; ppn < numPhysPages; ppn++)
+				pageOwners.set(ppn, -1);
+		}
 
+		createTLB();
+	}
+
+	/**
+	 * Allocate another core's processor, which shares physical memory, the
+	 * instructions decoded from it, compiled blocks, and the exception handler
+	 * with the boot processor. Its registers and TLB are its own, and so are its
+	 * translated blocks, whose operations act on its registers.
+	 *
+	 * @param privilege encapsulates privileged access to the Nachos machine.
+	 * @param boot      the processor of core 0.
+	 * @param core      the core this processor belongs to.
+	 */
+	Processor(Privilege privilege, Processor boot, int core) {
+		this.privilege = privilege;
+		processorPrivilege = new ProcessorPrivilege();
+		stats = privilege.stats;
+		this.boot = boot;
+		this.core = core;
+
+		usingTLB = boot.usingTLB;
+		numPhysPages = boot.numPhysPages;
+
+		mainMemory = boot.mainMemory;
+		memoryBuffer = boot.memoryBuffer;
+		decodedPages = boot.decodedPages;
+
+		batchTicks = boot.batchTicks;
+		translateBlocks = boot.translateBlocks;
+		if (translateBlocks) {
+			blockPages = new BasicBlock[numPhysPages][];
+			blockSources = new int[numPhysPages][];
+		}
+		jit = boot.jit;
+		jitThreshold = boot.jitThreshold;
+		compiledBlocks = boot.compiledBlocks;
+
+		tracing = boot.tracing;
+
+		createTLB();
+	}
+
+	private void createTLB() {
 		if (usingTLB) {
+			tlbSize = Config.getInteger("Processor.tlbSize", 4);
+			tlbWays = Config.getInteger("Processor.tlbWays", tlbSize);
+			Lib.assertTrue(tlbSize > 0 && tlbWays > 0 && tlbSize % tlbWays == 0,
+					"Processor.tlbWays must divide Processor.tlbSize");
+			tlbSets = tlbSize / tlbWays;
+
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
 				translations[i] = new TranslationEntry();
+
+			microTLB = new TranslationEntry[microTLBSize];
 		} else {
 			translations = null;
 		}
 	}
 
+	/**
+	 * Map physical memory onto a file, which is created or resized as needed and
+	 * keeps the contents of memory after Nachos exits.
+	 *
+	 * @param fileName the file to map.
+	 * @param size     the size of physical memory, in bytes.
+	 * @return a buffer backed by the file.
+	 */
+	private ByteBuffer mapMemory(final String fileName, final int size) {
+		Lib.assertTrue(fileName != null, "Processor.memoryFile must be set for mapped memory");
+
+		try {
+			return (ByteBuffer) privilege.doPrivileged(new PrivilegedExceptionAction<ByteBuffer>() {
+				public ByteBuffer run() throws IOException {
+					RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+					try {
+						file.setLength(size);
+						return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+					} finally {
+						file.close();
+					}
+				}
+			});
+		} catch (PrivilegedActionException e) {
+			Lib.assertNotReached("cannot map " + fileName + ": " + e.getException());
+			return null;
+		}
+	}
+
 	/**
 	 * Set the exception handler, called whenever a user exception occurs.
 	 *
@@ -64,7 +195,7 @@ public final class Processor {
 	 * @param exceptionHandler the kernel exception handler.
 	 */
 	public void setExceptionHandler(Runnable exceptionHandler) {
-		this.exceptionHandler = exceptionHandler;
+		boot.exceptionHandler = exceptionHandler;
 	}
 
 	/**
@@ -74,7 +205,15 @@ public final class Processor {
 	 * @return the exception handler.
 	 */
 	public Runnable getExceptionHandler() {
-		return exceptionHandler;
+		return boot.exceptionHandler;
+	}
+
+	/**
+	 * Route the privileged processor operations to this processor, whose core is
+	 * about to run.
+	 */
+	void makeCurrent() {
+		privilege.processor = processorPrivilege;
 	}
 
 	/**
@@ -87,8 +226,26 @@ public final class Processor {
 
 		Machine.autoGrader().runProcessor(privilege);
 
+		// a thread can move to another core whenever it gives up its own, so
+		// always run on the current core's processor
+		if (Machine.numCores() > 1) {
+			while (true)
+				Machine.processor().step();
+		}
+
 		Instruction inst = new Instruction();
 
+		// the debug flags expect to see every instruction fetched and decoded
+		if (translateBlocks && !Lib.test(dbgProcessor) && !Lib.test(dbgDisassemble) && !Lib.test(dbgFullDisassemble)) {
+			while (true)
+				runBlock();
+		}
+
+		if (batchTicks) {
+			while (true)
+				runBatch(inst);
+		}
+
 		while (true) {
 			try {
 				inst.run();
@@ -100,6 +257,478 @@ public final class Processor {
 		}
 	}
 
+	/**
+	 * Run a basic block, a batch, or a single instruction, whichever
+	 * <tt>run()</tt> would, on this processor.
+	 */
+	private void step() {
+		// an exception from the last epoch, whose instruction has not been charged
+		if (deferred != null) {
+			MipsException e = deferred;
+			deferred = null;
+
+			e.handle();
+			privilege.interrupt.tick(false);
+			return;
+		}
+
+		if (translateBlocks && !Lib.test(dbgProcessor) && !Lib.test(dbgDisassemble) && !Lib.test(dbgFullDisassemble)) {
+			runBlock();
+			return;
+		}
+
+		if (instruction == null)
+			instruction = new Instruction();
+
+		if (batchTicks) {
+			runBatch(instruction);
+			return;
+		}
+
+		try {
+			instruction.run();
+		} catch (MipsException e) {
+			e.handle();
+		}
+
+		privilege.interrupt.tick(false);
+	}
+
+	/**
+	 * Return the number of instructions that can run before the next interrupt is
+	 * due, including the one whose tick makes it due. Ticks for that many
+	 * instructions can be charged all at once afterwards, since no interrupt
+	 * handler would have run any earlier. An interrupt can already be overdue, if
+	 * a handler switched to this thread before the rest were run, in which case
+	 * it is due after one instruction.
+	 *
+	 * @return the number of instructions until the next interrupt.
+	 */
+	private int instructionsUntilInterrupt() {
+		long ticks = Machine.interrupt().nextPendingTime() - privilege.stats.totalTicks;
+		if (ticks <= 0)
+			return 1;
+
+		return (int) Math.min((ticks - 1) / Stats.UserTick + 1, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Execute instructions one at a time until the next interrupt is due or an
+	 * exception occurs, then charge their ticks in one go.
+	 *
+	 * @param inst the instruction object to use.
+	 */
+	private void runBatch(Instruction inst) {
+		int budget = instructionsUntilInterrupt();
+		int executed = 0;
+
+		do {
+			try {
+				inst.run();
+			} catch (MipsException e) {
+				// the exception handler may look at the time
+				Machine.interrupt().tickUser(executed);
+				e.handle();
+				privilege.interrupt.tick(false);
+				return;
+			}
+		} while (++executed < budget);
+
+		Machine.interrupt().tickUser(executed);
+	}
+
+	/**
+	 * Execute the basic block starting at the current PC. Gives exactly the same
+	 * results as running its instructions one at a time, but stops early whenever
+	 * an exception or interrupt occurs, control leaves the block, or the block's
+	 * page is overwritten.
+	 */
+	private void runBlock() {
+		int paddr;
+
+		try {
+			paddr = translate(registers[regPC], 4, false);
+		} catch (MipsException e) {
+			e.handle();
+			privilege.interrupt.tick(false);
+			return;
+		}
+
+		BasicBlock block = getBlock(paddr);
+
+		// no interrupt handler can run before this, so nothing can reschedule it
+		int budget = instructionsUntilInterrupt();
+		int[] page = decodedPages[block.ppn];
+		int pc = registers[regPC];
+
+		if (jit && block.compiled == null && ++block.runs == jitThreshold)
+			block.compiled = compileBlock(paddr, block.ops.length);
+
+		// compiled code skips the checks below, so it must start on the
+		// fall-through path with no load in flight, and finish before the next
+		// interrupt is due
+		if (block.compiled != null && loadTarget == 0 && registers[regNextPC] == pc + 4
+				&& block.ops.length <= budget) {
+			runCompiled(block);
+			return;
+		}
+
+		int executed = 0;
+
+		while (executed < block.ops.length) {
+			try {
+				block.ops[executed].run();
+			} catch (MipsException e) {
+				Machine.interrupt().tickUser(executed);
+				e.handle();
+				privilege.interrupt.tick(false);
+				return;
+			}
+
+			executed++;
+
+			// interrupt handlers may change the address space
+			if (executed == budget)
+				break;
+
+			// a store into this page may have rewritten the rest of the block
+			if (decodedPages[block.ppn] != page)
+				break;
+
+			pc += 4;
+			if (registers[regPC] != pc)
+				break;
+		}
+
+		Machine.interrupt().tickUser(executed);
+	}
+
+	/**
+	 * Run a compiled block from start to finish, then charge the ticks for every
+	 * instruction it executed. No interrupt can be due before its last
+	 * instruction, so this is the same as ticking after each one.
+	 *
+	 * @param block the block to run.
+	 */
+	private void runCompiled(BasicBlock block) {
+		int pc = registers[regPC];
+		int executed;
+
+		try {
+			executed = block.compiled.run(this, registers, block.ppn);
+		} catch (MipsException e) {
+			// the compiled code leaves the PC at the instruction that failed
+			Machine.interrupt().tickUser((registers[regPC] - pc) / 4);
+
+			e.handle();
+			privilege.interrupt.tick(false);
+			return;
+		}
+
+		Machine.interrupt().tickUser(executed);
+	}
+
+	/**
+	 * Test whether this processor can run instructions in an epoch. It cannot if
+	 * it still has to handle an exception from the last one, or if every
+	 * instruction is being traced.
+	 *
+	 * @return <tt>true</tt> if <tt>runEpoch()</tt> may be called.
+	 */
+	boolean canRunEpoch() {
+		return deferred == null && !tracing && !Lib.test(dbgDisassemble) && !Lib.test(dbgFullDisassemble);
+	}
+
+	/**
+	 * Run up to the specified number of instructions as part of an epoch, on
+	 * whatever host thread calls this, while other cores run theirs on other host
+	 * threads. No time passes and no interrupts are delivered; the caller charges
+	 * the ticks afterwards, and must call <tt>endEpoch()</tt> once every core has
+	 * finished.
+	 *
+	 * <p>
+	 * Stops early before an instruction that causes an exception, which is
+	 * handled the next time this core runs on its own, or before an instruction
+	 * that touches a physical page another core has touched during the epoch,
+	 * which is just run again then.
+	 *
+	 * @param budget the most instructions to run.
+	 * @return the number of instructions executed.
+	 */
+	int runEpoch(int budget) {
+		if (epochStats == null) {
+			epochStats = new Stats();
+			ownsPage = new boolean[numPhysPages];
+			ownedPages = new int[numPhysPages];
+		}
+
+		stats = epochStats;
+		inEpoch = true;
+		epochStopped = false;
+
+		int executed = 0;
+		while (executed < budget && !epochStopped) {
+			if (translateBlocks)
+				executed += runEpochBlock(budget - executed);
+			else
+				executed += runEpochInstruction();
+		}
+
+		inEpoch = false;
+		stats = privilege.stats;
+
+		return executed;
+	}
+
+	/**
+	 * Give up the physical pages this processor claimed during the epoch, and add
+	 * what it counted to the machine's statistics.
+	 */
+	void endEpoch() {
+		for (int i = 0; i < numOwnedPages; i++) {
+			boot.pageOwners.set(ownedPages[i], -1);
+			ownsPage[ownedPages[i]] = false;
+		}
+		numOwnedPages = 0;
+
+		Stats machineStats = privilege.stats;
+		machineStats.numPageFaults += epochStats.numPageFaults;
+		machineStats.numTLBMisses += epochStats.numTLBMisses;
+		machineStats.numMicroTLBHits += epochStats.numMicroTLBHits;
+		machineStats.numMicroTLBMisses += epochStats.numMicroTLBMisses;
+
+		epochStats.numPageFaults = 0;
+		epochStats.numTLBMisses = 0;
+		epochStats.numMicroTLBHits = 0;
+		epochStats.numMicroTLBMisses = 0;
+	}
+
+	private int runEpochInstruction() {
+		if (instruction == null)
+			instruction = new Instruction();
+
+		try {
+			instruction.run();
+		} catch (MipsException e) {
+			stopEpoch(e);
+			return 0;
+		}
+
+		return 1;
+	}
+
+	/**
+	 * Like <tt>runBlock()</tt>, but without ticking, for an epoch.
+	 */
+	private int runEpochBlock(int budget) {
+		int paddr;
+
+		try {
+			paddr = translate(registers[regPC], 4, false);
+		} catch (MipsException e) {
+			stopEpoch(e);
+			return 0;
+		}
+
+		BasicBlock block = getBlock(paddr);
+
+		int[] page = decodedPages[block.ppn];
+		int pc = registers[regPC];
+
+		if (jit && block.compiled == null && ++block.runs == jitThreshold)
+			block.compiled = compileBlock(paddr, block.ops.length);
+
+		if (block.compiled != null && loadTarget == 0 && registers[regNextPC] == pc + 4
+				&& block.ops.length <= budget) {
+			try {
+				return block.compiled.run(this, registers, block.ppn);
+			} catch (MipsException e) {
+				stopEpoch(e);
+				return (registers[regPC] - pc) / 4;
+			}
+		}
+
+		int executed = 0;
+
+		while (executed < block.ops.length) {
+			try {
+				block.ops[executed].run();
+			} catch (MipsException e) {
+				stopEpoch(e);
+				return executed;
+			}
+
+			executed++;
+
+			if (executed == budget)
+				break;
+
+			if (decodedPages[block.ppn] != page)
+				break;
+
+			pc += 4;
+			if (registers[regPC] != pc)
+				break;
+		}
+
+		return executed;
+	}
+
+	private void stopEpoch(MipsException e) {
+		epochStopped = true;
+
+		if (!(e instanceof PageConflict))
+			deferred = e;
+	}
+
+	/**
+	 * Claim a physical page for this core until the end of the epoch, unless
+	 * another core has already claimed it.
+	 *
+	 * @param ppn the physical page about to be accessed.
+	 * @exception MipsException if another core owns the page.
+	 */
+	private void claimPage(int ppn) throws MipsException {
+		if (ownsPage[ppn])
+			return;
+
+		if (!boot.pageOwners.compareAndSet(ppn, -1, core))
+			throw new PageConflict();
+
+		ownsPage[ppn] = true;
+		ownedPages[numOwnedPages++] = ppn;
+	}
+
+	/**
+	 * Compile the block starting at the specified physical address into a new
+	 * JVM class, so that HotSpot can optimize it like any other Java code. Blocks
+	 * with the same instructions share a class.
+	 *
+	 * @param paddr  the physical address of the first instruction in the block.
+	 * @param length the number of instructions in the block.
+	 * @return the compiled block, or <tt>null</tt> if the block contains an
+	 *         instruction that can only be interpreted.
+	 */
+	private CompiledBlock compileBlock(int paddr, int length) {
+		int[] words = new int[length];
+		for (int i = 0; i < length; i++)
+			words[i] = readPhysical(paddr + i * 4, 4);
+
+		// cores running an epoch compile on different host threads
+		synchronized (compiledBlocks) {
+			return compileBlock(paddr, length, words);
+		}
+	}
+
+	private CompiledBlock compileBlock(int paddr, int length, int[] words) {
+		// an IntBuffer compares and hashes its contents
+		IntBuffer key = IntBuffer.wrap(words);
+		CompiledBlock compiled = compiledBlocks.get(key);
+		if (compiled != null)
+			return compiled;
+
+		BlockCompiler compiler = new BlockCompiler();
+		for (int i = 0; i < length; i++) {
+			Instruction inst = new Instruction();
+			inst.value = words[i];
+			inst.decodeFields();
+
+			if (!compiler.add(inst))
+				return null;
+		}
+
+		final byte[] classFile = compiler.finish();
+
+		try {
+			compiled = (CompiledBlock) privilege.doPrivileged(new PrivilegedExceptionAction<CompiledBlock>() {
+				public CompiledBlock run() throws Exception {
+					Class<?> cls = MethodHandles.lookup().defineClass(classFile);
+					return (CompiledBlock) cls.getDeclaredConstructor().newInstance();
+				}
+			});
+		} catch (PrivilegedActionException e) {
+			System.err.println("Warning: cannot compile blocks: " + e.getException());
+			jit = false;
+			return null;
+		}
+
+		Lib.debug(dbgJit, "compiled " + length + " instructions at paddr 0x" + Lib.toHexString(paddr));
+
+		compiledBlocks.put(key, compiled);
+		return compiled;
+	}
+
+	/**
+	 * Return the basic block starting at the specified physical address,
+	 * translating it if necessary.
+	 *
+	 * @param paddr the physical address of the first instruction in the block.
+	 * @return the translated block.
+	 */
+	private BasicBlock getBlock(int paddr) {
+		int ppn = paddr / pageSize;
+		int index = (paddr % pageSize) / 4;
+
+		// translated blocks share the lifetime of the page's decoded instructions,
+		// which another core may have invalidated
+		if (blockPages[ppn] == null || blockSources[ppn] != decodedPages[ppn]) {
+			blockPages[ppn] = new BasicBlock[pageSize / 4];
+			if (decodedPages[ppn] == null)
+				decodedPages[ppn] = new int[(pageSize / 4) * decodedStride];
+			blockSources[ppn] = decodedPages[ppn];
+		}
+
+		BasicBlock block = blockPages[ppn][index];
+		if (block == null) {
+			block = translateBlock(paddr);
+			blockPages[ppn][index] = block;
+		}
+
+		return block;
+	}
+
+	/**
+	 * Translate the straight-line instructions starting at the specified physical
+	 * address. A block ends after the delay slot of its first branch or jump,
+	 * after a syscall, or at the end of the page, whichever comes first.
+	 *
+	 * @param paddr the physical address of the first instruction in the block.
+	 * @return the new block.
+	 */
+	private BasicBlock translateBlock(int paddr) {
+		int ppn = paddr / pageSize;
+		int end = (ppn + 1) * pageSize;
+		Vector<Op> ops = new Vector<Op>();
+
+		boolean inDelaySlot = false;
+		for (int addr = paddr; addr < end; addr += 4) {
+			Instruction inst = new Instruction();
+			inst.value = readPhysical(addr, 4);
+			inst.decodeFields();
+
+			ops.add(inst.makeOp());
+
+			if (inDelaySlot || inst.operation == Mips.SYSCALL)
+				break;
+			if (inst.test(Mips.BRANCH))
+				inDelaySlot = true;
+		}
+
+		return new BasicBlock(ppn, ops.toArray(new Op[ops.size()]));
+	}
+
+	/**
+	 * Test whether the translated blocks of a physical page are still valid.
+	 * Called by compiled blocks after every store.
+	 *
+	 * @param ppn the physical page.
+	 * @return <tt>true</tt> if the page has not been written since its blocks
+	 *         were translated.
+	 */
+	boolean hasBlocks(int ppn) {
+		return blockPages[ppn] != null;
+	}
+
 	/**
 	 * Read and return the contents of the specified CPU register.
 	 *
@@ -168,6 +797,9 @@ public final class Processor {
 	public void setPageTable(TranslationEntry[] pageTable) {
 		Lib.assertTrue(!usingTLB);
 
+		// there is no micro-TLB to flush: the page table is already indexed by
+		// vpn, and the kernel may change its entries at any time
+
 		this.translations = pageTable;
 	}
 
@@ -182,6 +814,39 @@ public final class Processor {
 		return tlbSize;
 	}
 
+	/**
+	 * Return the number of entries in each set of this processor's TLB. This is 1
+	 * for a direct-mapped TLB, and <tt>getTLBSize()</tt> for a fully associative
+	 * one.
+	 *
+	 * <p>
+	 * An instruction may need two translations, one for itself and one for the
+	 * data it accesses. With a direct-mapped TLB, an instruction whose code and
+	 * data pages fall in the same set can never complete.
+	 *
+	 * @return the associativity of this processor's TLB.
+	 */
+	public int getTLBWays() {
+		Lib.assertTrue(usingTLB);
+
+		return tlbWays;
+	}
+
+	/**
+	 * Return the set of TLB entries that can map the specified virtual page. The
+	 * set contains the entries numbered <tt>set * getTLBWays()</tt> through
+	 * <tt>(set + 1) * getTLBWays() - 1</tt>.
+	 *
+	 * @param vpn the virtual page number.
+	 * @return the number of the set that can map <i>vpn</i>.
+	 */
+	public int getTLBSet(int vpn) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(vpn >= 0);
+
+		return vpn % tlbSets;
+	}
+
 	/**
 	 * Returns the specified TLB entry.
 	 *
@@ -195,12 +860,34 @@ public final class Processor {
 		return new TranslationEntry(translations[number]);
 	}
 
+	/**
+	 * Copy the specified TLB entry into an entry the caller owns, without
+	 * allocating one.
+	 *
+	 * @param number the index into the TLB.
+	 * @param into   the entry to fill in with the contents of the TLB entry.
+	 */
+	public void readTLBEntry(int number, TranslationEntry into) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(number >= 0 && number < tlbSize);
+
+		TranslationEntry slot = translations[number];
+		into.vpn = slot.vpn;
+		into.ppn = slot.ppn;
+		into.valid = slot.valid;
+		into.readOnly = slot.readOnly;
+		into.used = slot.used;
+		into.dirty = slot.dirty;
+		into.asid = slot.asid;
+	}
+
 	/**
 	 * Fill the specified TLB entry.
 	 *
 	 * <p>
-	 * The TLB is fully associative, so the location of an entry within the TLB does
-	 * not affect anything.
+	 * If the TLB is fully associative, the location of an entry within the TLB
+	 * does not affect anything. Otherwise, a valid entry must be written to the set
+	 * returned by <tt>getTLBSet()</tt>.
 	 *
 	 * @param number the index into the TLB.
 	 * @param entry  the new contents of the TLB entry.
@@ -208,8 +895,59 @@ public final class Processor {
 	public void writeTLBEntry(int number, TranslationEntry entry) {
 		Lib.assertTrue(usingTLB);
 		Lib.assertTrue(number >= 0 && number < tlbSize);
+		Lib.assertTrue(!entry.valid || getTLBSet(entry.vpn) == number / tlbWays,
+				"TLB entry written outside the set for its vpn");
+
+		// forget the old entry, and anything that might hide the new one
+		uncache(translations[number].vpn);
+		uncache(entry.vpn);
+
+		// the slot's entry is only ever handed out as a copy, so it can be reused
+		TranslationEntry slot = translations[number];
+		slot.vpn = entry.vpn;
+		slot.ppn = entry.ppn;
+		slot.valid = entry.valid;
+		slot.readOnly = entry.readOnly;
+		slot.used = entry.used;
+		slot.dirty = entry.dirty;
+		slot.asid = entry.asid;
+	}
+
+	/**
+	 * Return the current address-space identifier.
+	 *
+	 * @return the ASID that TLB entries must have to be used.
+	 */
+	public int getASID() {
+		Lib.assertTrue(usingTLB);
+
+		return asid;
+	}
+
+	/**
+	 * Set the current address-space identifier. From now on, only TLB entries
+	 * whose <tt>asid</tt> matches it translate addresses, so the kernel can
+	 * leave the entries of several processes in the TLB and switch between
+	 * them without invalidating any.
+	 *
+	 * @param asid the new ASID.
+	 */
+	public void setASID(int asid) {
+		Lib.assertTrue(usingTLB);
+
+		if (asid != this.asid) {
+			this.asid = asid;
+			Arrays.fill(microTLB, null);
+		}
+	}
 
-		translations[number] = new TranslationEntry(entry);
+	/**
+	 * Remove any micro-TLB entry for the specified virtual page.
+	 *
+	 * @param vpn the virtual page number.
+	 */
+	private void uncache(int vpn) {
+		microTLB[(vpn & 0x7FFFFFFF) % microTLBSize] = null;
 	}
 
 	/**
@@ -224,14 +962,98 @@ public final class Processor {
 
 	/**
 	 * Return a reference to the physical memory array. The size of this array is
-	 * <tt>pageSize * getNumPhysPages()</tt>.
+	 * <tt>pageSize * getNumPhysPages()</tt>. Only available when physical memory
+	 * is on the Java heap; <tt>getMemoryBuffer()</tt> always works.
 	 *
 	 * @return the main memory array.
 	 */
 	public byte[] getMemory() {
+		Lib.assertTrue(mainMemory != null, "physical memory is not an array; use getMemoryBuffer()");
+
 		return mainMemory;
 	}
 
+	/**
+	 * Return a new little-endian view of physical memory, however it is stored.
+	 * The view has its own position and limit, and its capacity is
+	 * <tt>pageSize * getNumPhysPages()</tt>.
+	 *
+	 * @return a buffer sharing its contents with physical memory.
+	 */
+	public ByteBuffer getMemoryBuffer() {
+		return memoryBuffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Read a little-endian value from physical memory. Bytes and halfwords are
+	 * sign-extended.
+	 *
+	 * @param paddr the physical address to read from.
+	 * @param size  the number of bytes to read (1, 2, or 4).
+	 * @return the value read.
+	 */
+	private int readPhysical(int paddr, int size) {
+		if (mainMemory != null)
+			return Lib.loadAligned(mainMemory, paddr, size);
+
+		switch (size) {
+			case 1:
+				return memoryBuffer.get(paddr);
+			case 2:
+				return memoryBuffer.getShort(paddr);
+			default:
+				return memoryBuffer.getInt(paddr);
+		}
+	}
+
+	/**
+	 * Write a little-endian value to physical memory.
+	 *
+	 * @param paddr the physical address to write to.
+	 * @param size  the number of bytes to write (1, 2, or 4).
+	 * @param value the value to write.
+	 */
+	private void writePhysical(int paddr, int size, int value) {
+		if (mainMemory != null) {
+			Lib.storeAligned(mainMemory, paddr, size, value);
+			return;
+		}
+
+		switch (size) {
+			case 1:
+				memoryBuffer.put(paddr, (byte) value);
+				break;
+			case 2:
+				memoryBuffer.putShort(paddr, (short) value);
+				break;
+			default:
+				memoryBuffer.putInt(paddr, value);
+				break;
+		}
+	}
+
+	/**
+	 * Discard any instructions decoded from the specified physical page. Must be
+	 * called whenever the contents of a page are replaced by anything other than a
+	 * user store, so that stale instructions are not executed.
+	 *
+	 * @param ppn the physical page that is being overwritten.
+	 */
+	public void invalidatePage(int ppn) {
+		decodedPages[ppn] = null;
+		if (translateBlocks)
+			blockPages[ppn] = null;
+	}
+
+	/**
+	 * Count a page fault in <tt>Stats.numPageFaults</tt>. With a TLB the
+	 * processor cannot tell a miss on a page in memory from one on a page that is
+	 * not, so a kernel that pages on demand counts its own faults.
+	 */
+	public void countPageFault() {
+		stats.numPageFaults++;
+	}
+
 	/**
 	 * Concatenate a page number and an offset into an address.
 	 *
@@ -285,7 +1107,28 @@ public final class Processor {
 	 * @exception MipsException if a translation error occurred.
 	 */
 	private int translate(int vaddr, int size, boolean writing) throws MipsException {
-		if (Lib.test(dbgProcessor))
+		// fast path: an aligned access through a recently used TLB entry
+		if (usingTLB && !tracing && (vaddr & (size - 1)) == 0) {
+			int vpn = pageFromAddress(vaddr);
+			TranslationEntry entry = microTLB[vpn % microTLBSize];
+
+			if (entry != null && entry.vpn == vpn && !(writing && entry.readOnly)) {
+				if (inEpoch)
+					claimPage(entry.ppn);
+
+				stats.numMicroTLBHits++;
+
+				entry.used = true;
+				if (writing)
+					entry.dirty = true;
+
+				return (entry.ppn * pageSize) + offsetFromAddress(vaddr);
+			}
+
+			stats.numMicroTLBMisses++;
+		}
+
+		if (tracing)
 			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr) + (writing ? ", write" : ", read..."));
 
 		// check alignment
@@ -304,23 +1147,24 @@ public final class Processor {
 		if (!usingTLB) {
 			if (translations == null || vpn >= translations.length || translations[vpn] == null
 					|| !translations[vpn].valid) {
-				privilege.stats.numPageFaults++;
+				stats.numPageFaults++;
 				Lib.debug(dbgProcessor, "\t\tpage fault");
 				throw new MipsException(exceptionPageFault, vaddr);
 			}
 
 			entry = translations[vpn];
 		}
-		// else, look through all TLB entries for matching vpn
+		// else, look through the TLB entries in the set that can map vpn
 		else {
-			for (int i = 0; i < tlbSize; i++) {
-				if (translations[i].valid && translations[i].vpn == vpn) {
+			int first = (vpn % tlbSets) * tlbWays;
+			for (int i = first; i < first + tlbWays; i++) {
+				if (translations[i].valid && translations[i].vpn == vpn && translations[i].asid == asid) {
 					entry = translations[i];
 					break;
 				}
 			}
 			if (entry == null) {
-				privilege.stats.numTLBMisses++;
+				stats.numTLBMisses++;
 				Lib.debug(dbgProcessor, "\t\tTLB miss");
 				throw new MipsException(exceptionTLBMiss, vaddr);
 			}
@@ -339,14 +1183,22 @@ public final class Processor {
 			throw new MipsException(exceptionBusError, vaddr);
 		}
 
+		if (inEpoch)
+			claimPage(ppn);
+
 		// set used and dirty bits as appropriate
 		entry.used = true;
 		if (writing)
 			entry.dirty = true;
 
+		// TLB entries only change through writeTLBEntry(), so this one can be
+		// reused until then
+		if (usingTLB)
+			microTLB[vpn % microTLBSize] = entry;
+
 		int paddr = (ppn * pageSize) + offset;
 
-		if (Lib.test(dbgProcessor))
+		if (tracing)
 			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
 		return paddr;
 	}
@@ -360,15 +1212,15 @@ public final class Processor {
 	 * @return the value read.
 	 * @exception MipsException if a translation error occurred.
 	 */
-	private int readMem(int vaddr, int size) throws MipsException {
-		if (Lib.test(dbgProcessor))
+	int readMem(int vaddr, int size) throws MipsException {
+		if (tracing)
 			System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr) + ", size=" + size);
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false), size);
+		int value = readPhysical(translate(vaddr, size, false), size);
 
-		if (Lib.test(dbgProcessor))
+		if (tracing)
 			System.out.println("\t\tvalue read=0x" + Lib.toHexString(value, size * 2));
 
 		return value;
@@ -383,14 +1235,20 @@ public final class Processor {
 	 * @param value the value to store.
 	 * @exception MipsException if a translation error occurred.
 	 */
-	private void writeMem(int vaddr, int size, int value) throws MipsException {
-		if (Lib.test(dbgProcessor))
+	void writeMem(int vaddr, int size, int value) throws MipsException {
+		if (tracing)
 			System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr) + ", size=" + size + ", value=0x"
 					+ Lib.toHexString(value, size * 2));
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		int paddr = translate(vaddr, size, true);
+
+		// stores into a page we have executed from make its decoded copy stale
+		if (decodedPages[paddr / pageSize] != null)
+			invalidatePage(paddr / pageSize);
+
+		writePhysical(paddr, size, value);
 	}
 
 	/**
@@ -403,7 +1261,7 @@ public final class Processor {
 	 *                       then the corresponding bit of register
 	 *                       <tt>nextLoadTarget</tt> will not be written.
 	 */
-	private void delayedLoad(int nextLoadTarget, int nextLoadValue, int nextLoadMask) {
+	void delayedLoad(int nextLoadTarget, int nextLoadValue, int nextLoadMask) {
 		// complete previous delayed load, if not modifying r0
 		if (loadTarget != 0) {
 			int savedBits = registers[loadTarget] & ~loadMask;
@@ -417,6 +1275,67 @@ public final class Processor {
 		loadMask = nextLoadMask;
 	}
 
+	/**
+	 * Retire a translated instruction that has no destination register: complete
+	 * any delayed load and advance the PC.
+	 */
+	private void retire() {
+		finishLoad();
+		advancePC(registers[regNextPC] + 4);
+	}
+
+	/**
+	 * Retire a translated instruction: complete any delayed load, write the
+	 * destination register, and advance the PC. The operands must have been read
+	 * before calling this, so that they still see a load in its delay slot.
+	 *
+	 * @param dstReg the destination register.
+	 * @param value  the value to write to it.
+	 */
+	private void retire(int dstReg, int value) {
+		finishLoad();
+
+		if (dstReg != 0)
+			registers[dstReg] = value;
+
+		advancePC(registers[regNextPC] + 4);
+	}
+
+	/**
+	 * Retire a translated PC-relative branch.
+	 *
+	 * @param taken  <tt>true</tt> if the branch is taken.
+	 * @param offset the branch offset, in instructions.
+	 * @param link   the register to write the return address to, or 0.
+	 */
+	private void retireBranch(boolean taken, int offset, int link) {
+		int nextPC = registers[regNextPC];
+
+		finishLoad();
+
+		if (link != 0)
+			registers[link] = nextPC + 4;
+
+		advancePC(taken ? nextPC + (offset << 2) : nextPC + 4);
+	}
+
+	/**
+	 * Retire a translated jump.
+	 *
+	 * @param target the address to jump to.
+	 * @param link   the register to write the return address to, or 0.
+	 */
+	private void retireJump(int target, int link) {
+		int nextPC = registers[regNextPC];
+
+		finishLoad();
+
+		if (link != 0)
+			registers[link] = nextPC + 4;
+
+		advancePC(target);
+	}
+
 	/**
 	 * Advance the PC to the next instruction.
 	 *
@@ -513,12 +1432,23 @@ public final class Processor {
 	/** <tt>true</tt> if using a software-managed TLB. */
 	private boolean usingTLB;
 	/** Number of TLB entries. */
-	private int tlbSize = 4;
+	private int tlbSize;
+	/** Number of TLB entries in each set, and the number of sets. */
+	private int tlbWays, tlbSets;
 	/**
 	 * Either an associative or direct-mapped set of translation entries, depending
 	 * on whether there is a TLB.
 	 */
 	private TranslationEntry[] translations;
+	/**
+	 * A direct-mapped cache of recently used TLB entries, indexed by vpn modulo
+	 * <tt>microTLBSize</tt>. Every entry in it is also in <tt>translations</tt>.
+	 */
+	private TranslationEntry[] microTLB;
+	/** The ASID that TLB entries must have to translate addresses. */
+	private int asid = 0;
+	/** Number of micro-TLB entries. */
+	private static final int microTLBSize = 64;
 
 	/** Size of a page, in bytes. */
 	public static final int pageSize = 0x400;
@@ -526,15 +1456,94 @@ public final class Processor {
 	public static final int maxPages = (int) (0x100000000L / pageSize);
 	/** Number of physical pages in memory. */
 	private int numPhysPages;
-	/** Main memory for user programs. */
+	/**
+	 * Main memory for user programs, or <tt>null</tt> if it is not on the Java
+	 * heap.
+	 */
 	private byte[] mainMemory;
+	/**
+	 * Main memory for user programs, as a little-endian buffer. Wraps
+	 * <tt>mainMemory</tt> if there is one; otherwise it is a direct buffer, or a
+	 * file mapped into memory.
+	 */
+	private ByteBuffer memoryBuffer;
+
+	/**
+	 * Instructions decoded from each physical page, <tt>decodedStride</tt> ints
+	 * per word, or <tt>null</tt> if nothing has been fetched from the page since it
+	 * was last written.
+	 */
+	private int[][] decodedPages;
+	/** Number of ints describing each decoded instruction. */
+	private static final int decodedStride = 4;
+	/** Set in the info word of every entry in <tt>decodedPages</tt>. */
+	private static final int decodedValid = 0x80000000;
+
+	/**
+	 * <tt>true</tt> if the interpreter charges ticks for a batch of instructions
+	 * at a time.
+	 */
+	private boolean batchTicks;
+	/** <tt>true</tt> if running translated basic blocks. */
+	private boolean translateBlocks;
+	/**
+	 * Translated blocks, indexed by the word offset of their first instruction in
+	 * their physical page. A page has blocks only if it also has an entry in
+	 * <tt>decodedPages</tt>, so that invalidating one invalidates both.
+	 */
+	private BasicBlock[][] blockPages;
+	/**
+	 * The entry of <tt>decodedPages</tt> that each page's blocks were translated
+	 * alongside. Another core only invalidates the shared entry.
+	 */
+	private int[][] blockSources;
+
+	/** <tt>true</tt> if compiling frequently run blocks into JVM classes. */
+	private boolean jit;
+	/** Number of times a block runs before it is compiled. */
+	private int jitThreshold;
+	/** Compiled blocks, indexed by their instructions. */
+	private Hashtable<IntBuffer, CompiledBlock> compiledBlocks = new Hashtable<IntBuffer, CompiledBlock>();
+	/** Number of classes generated for compiled blocks, used to name them. */
+	private static int numCompiledClasses = 0;
 
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
+	/** The processor of core 0, which holds the exception handler. */
+	private Processor boot;
+	private Privilege.ProcessorPrivilege processorPrivilege;
+	/** Used by <tt>step()</tt>, which runs once per instruction or block. */
+	private Instruction instruction = null;
+
+	/** The core this processor belongs to. */
+	private int core = 0;
+	/**
+	 * Where <tt>translate()</tt> counts TLB lookups and faults: the machine's
+	 * statistics, or during an epoch, this processor's own.
+	 */
+	private Stats stats;
+	private Stats epochStats = null;
+	/** <tt>true</tt> while running an epoch on another host thread. */
+	private boolean inEpoch = false;
+	private boolean epochStopped;
+	/** An exception from the last epoch, to be handled when this core next runs. */
+	private MipsException deferred = null;
+	/**
+	 * The core that has claimed each physical page during the current epoch, or
+	 * -1. Held by the boot processor.
+	 */
+	private AtomicIntegerArray pageOwners;
+	/** The pages this processor has claimed during the current epoch. */
+	private boolean[] ownsPage;
+	private int[] ownedPages;
+	private int numOwnedPages = 0;
 
 	private static final char dbgProcessor = 'p';
+	/** <tt>true</tt> if tracing every memory access, so there is no fast path. */
+	private boolean tracing;
 	private static final char dbgDisassemble = 'm';
 	private static final char dbgFullDisassemble = 'M';
+	private static final char dbgJit = 'j';
 
 	private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 		public void flushPipe() {
@@ -543,6 +1552,10 @@ public final class Processor {
 	}
 
 	private class MipsException extends Exception {
+		/** Only for a <tt>PageConflict</tt>, which is never handled. */
+		private MipsException() {
+		}
+
 		public MipsException(int cause) {
 			Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
@@ -557,29 +1570,40 @@ public final class Processor {
 		}
 
 		public void handle() {
-			writeRegister(regCause, cause);
+			// the ticks charged before this may have moved the thread to another core
+			Processor processor = Machine.processor();
+
+			processor.writeRegister(regCause, cause);
 
 			if (hasBadVAddr)
-				writeRegister(regBadVAddr, badVAddr);
+				processor.writeRegister(regBadVAddr, badVAddr);
 
 			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
 				System.out.println("exception: " + exceptionNames[cause]);
 
-			finishLoad();
+			processor.finishLoad();
 
-			Lib.assertTrue(exceptionHandler != null);
+			Lib.assertTrue(boot.exceptionHandler != null);
 
 			// autograder might not want kernel to know about this exception
 			if (!Machine.autoGrader().exceptionHandler(privilege))
 				return;
 
-			exceptionHandler.run();
+			boot.exceptionHandler.run();
 		}
 
 		private boolean hasBadVAddr = false;
 		private int cause, badVAddr;
 	}
 
+	/**
+	 * Thrown during an epoch by an access to a page that another core has
+	 * claimed. Stops the epoch without changing this processor's state.
+	 */
+	private class PageConflict extends MipsException {
+		private static final long serialVersionUID = 1L;
+	}
+
 	private class Instruction {
 		public void run() throws MipsException {
 			// hopefully this looks familiar to 152 students?
@@ -597,17 +1621,131 @@ public final class Processor {
 			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) || Lib.test(dbgFullDisassemble))
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC]) + "\t");
 
-			value = readMem(registers[regPC], 4);
+			// tracing and disassembly want every fetch to go through readMem()
+			if (Lib.test(dbgProcessor) || Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble)) {
+				value = readMem(registers[regPC], 4);
+				decodedPage = null;
+				predecoded = false;
+				return;
+			}
+
+			int paddr = translate(registers[regPC], 4, false);
+			int ppn = paddr / pageSize;
+
+			decodedPage = decodedPages[ppn];
+			if (decodedPage == null) {
+				decodedPage = new int[(pageSize / 4) * decodedStride];
+				decodedPages[ppn] = decodedPage;
+			}
+			decodedIndex = ((paddr % pageSize) / 4) * decodedStride;
+
+			// a decoded entry always has its valid bit set
+			predecoded = (decodedPage[decodedIndex + 1] != 0);
+			if (predecoded)
+				value = decodedPage[decodedIndex];
+			else
+				value = readPhysical(paddr, 4);
+		}
+
+		private void decode() {
+			if (predecoded) {
+				func = Lib.extract(value, 0, 6);
+				target = Lib.extract(value, 0, 26);
+
+				int info = decodedPage[decodedIndex + 1];
+				int regs = decodedPage[decodedIndex + 2];
+
+				op = Lib.extract(info, 0, 6);
+				operation = Lib.extract(info, 6, 6);
+				format = Lib.extract(info, 12, 2);
+				flags = Lib.extract(info, 14, 12);
+
+				rs = Lib.extract(regs, 0, 5);
+				rt = Lib.extract(regs, 5, 5);
+				rd = Lib.extract(regs, 10, 5);
+				sh = Lib.extract(regs, 15, 5);
+				dstReg = Lib.extract(regs, 20, 6) - 1;
+				size = Lib.extract(regs, 26, 3);
+
+				imm = decodedPage[decodedIndex + 3];
+			} else {
+				decodeFields();
+
+				if (decodedPage != null) {
+					decodedPage[decodedIndex] = value;
+					decodedPage[decodedIndex + 1] = op | (operation << 6) | (format << 12) | (flags << 14)
+							| decodedValid;
+					decodedPage[decodedIndex + 2] = rs | (rt << 5) | (rd << 10) | (sh << 15) | ((dstReg + 1) << 20)
+							| (size << 26);
+					decodedPage[decodedIndex + 3] = imm;
+				}
+			}
+
+			decodeOperands();
+		}
+
+		/**
+		 * Decode the parts of this instruction that depend on the register file.
+		 * <tt>decodeFields()</tt> must already have been called.
+		 */
+		private void decodeOperands() {
+			mask = 0xFFFFFFFF;
+			branch = true;
+
+			// get nextPC
+			nextPC = registers[regNextPC] + 4;
+
+			// get jtarget
+			if (format == Mips.RFMT)
+				jtarget = registers[rs];
+			else if (format == Mips.IFMT)
+				jtarget = registers[regNextPC] + (imm << 2);
+			else if (format == Mips.JFMT)
+				jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
+			else
+				jtarget = -1;
+
+			// get imm
+			if (test(Mips.UNSIGNED)) {
+				imm &= 0xFFFF;
+			}
+
+			// get addr
+			addr = registers[rs] + imm;
+
+			// get src1
+			if (test(Mips.SRC1SH))
+				src1 = sh;
+			else
+				src1 = registers[rs];
+
+			// get src2
+			if (test(Mips.SRC2IMM))
+				src2 = imm;
+			else
+				src2 = registers[rt];
+
+			if (test(Mips.UNSIGNED)) {
+				src1 &= 0xFFFFFFFFL;
+				src2 &= 0xFFFFFFFFL;
+			}
+
+			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+				print();
 		}
 
-		private void decode() {
+		/**
+		 * Decode the fields of <tt>value</tt> that do not depend on the register
+		 * file, consulting the opcode tables.
+		 */
+		private void decodeFields() {
+			func = Lib.extract(value, 0, 6);
+			target = Lib.extract(value, 0, 26);
 			op = Lib.extract(value, 26, 6);
 			rs = Lib.extract(value, 21, 5);
 			rt = Lib.extract(value, 16, 5);
 			rd = Lib.extract(value, 11, 5);
 			sh = Lib.extract(value, 6, 5);
-			func = Lib.extract(value, 0, 6);
-			target = Lib.extract(value, 0, 26);
 			imm = Lib.extend(value, 0, 16);
 
 			Mips info;
@@ -628,9 +1766,6 @@ public final class Processor {
 			format = info.format;
 			flags = info.flags;
 
-			mask = 0xFFFFFFFF;
-			branch = true;
-
 			// get memory access size
 			if (test(Mips.SIZEB))
 				size = 1;
@@ -641,9 +1776,6 @@ public final class Processor {
 			else
 				size = 0;
 
-			// get nextPC
-			nextPC = registers[regNextPC] + 4;
-
 			// get dstReg
 			if (test(Mips.DSTRA))
 				dstReg = regRA;
@@ -653,44 +1785,6 @@ public final class Processor {
 				dstReg = rd;
 			else
 				dstReg = -1;
-
-			// get jtarget
-			if (format == Mips.RFMT)
-				jtarget = registers[rs];
-			else if (format == Mips.IFMT)
-				jtarget = registers[regNextPC] + (imm << 2);
-			else if (format == Mips.JFMT)
-				jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
-			else
-				jtarget = -1;
-
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
-			}
-
-			// get addr
-			addr = registers[rs] + imm;
-
-			// get src1
-			if (test(Mips.SRC1SH))
-				src1 = sh;
-			else
-				src1 = registers[rs];
-
-			// get src2
-			if (test(Mips.SRC2IMM))
-				src2 = imm;
-			else
-				src2 = registers[rt];
-
-			if (test(Mips.UNSIGNED)) {
-				src1 &= 0xFFFFFFFFL;
-				src2 &= 0xFFFFFFFFL;
-			}
-
-			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
-				print();
 		}
 
 		private void print() {
@@ -1007,6 +2101,237 @@ public final class Processor {
 				System.out.print("\n");
 		}
 
+		/**
+		 * Translate this instruction into an operation that can run repeatedly
+		 * without being decoded again. <tt>decodeFields()</tt> must already have
+		 * been called. Common instructions get a specialized operation; the rest
+		 * are interpreted.
+		 *
+		 * @return the translated instruction.
+		 */
+		private Op makeOp() {
+			final int rs = this.rs, rt = this.rt, sh = this.sh, dstReg = this.dstReg, size = this.size;
+			final int imm = test(Mips.UNSIGNED) ? (this.imm & 0xFFFF) : this.imm;
+			final int jumpTarget = target << 2;
+			final int link = test(Mips.LINK) ? dstReg : 0;
+			final boolean unsigned = test(Mips.UNSIGNED);
+			final long unsignedMask = unsigned ? 0xFFFFFFFFL : -1L;
+
+			// trapping arithmetic is rare enough to leave to the interpreter
+			if (test(Mips.OVERFLOW))
+				return new InterpretedOp(this);
+
+			switch (operation) {
+				case Mips.ADD:
+					if (test(Mips.SRC2IMM))
+						return new Op() {
+							void run() {
+								retire(dstReg, registers[rs] + imm);
+							}
+						};
+					return new Op() {
+						void run() {
+							retire(dstReg, registers[rs] + registers[rt]);
+						}
+					};
+				case Mips.SUB:
+					return new Op() {
+						void run() {
+							retire(dstReg, registers[rs] - registers[rt]);
+						}
+					};
+				case Mips.AND:
+					if (test(Mips.SRC2IMM))
+						return new Op() {
+							void run() {
+								retire(dstReg, registers[rs] & imm);
+							}
+						};
+					return new Op() {
+						void run() {
+							retire(dstReg, registers[rs] & registers[rt]);
+						}
+					};
+				case Mips.OR:
+					if (test(Mips.SRC2IMM))
+						return new Op() {
+							void run() {
+								retire(dstReg, registers[rs] | imm);
+							}
+						};
+					return new Op() {
+						void run() {
+							retire(dstReg, registers[rs] | registers[rt]);
+						}
+					};
+				case Mips.XOR:
+					if (test(Mips.SRC2IMM))
+						return new Op() {
+							void run() {
+								retire(dstReg, registers[rs] ^ imm);
+							}
+						};
+					return new Op() {
+						void run() {
+							retire(dstReg, registers[rs] ^ registers[rt]);
+						}
+					};
+				case Mips.NOR:
+					return new Op() {
+						void run() {
+							retire(dstReg, ~(registers[rs] | registers[rt]));
+						}
+					};
+				case Mips.LUI:
+					return new Op() {
+						void run() {
+							retire(dstReg, imm << 16);
+						}
+					};
+				case Mips.SLT:
+					if (test(Mips.SRC2IMM))
+						return new Op() {
+							void run() {
+								retire(dstReg, (registers[rs] & unsignedMask) < (imm & unsignedMask) ? 1 : 0);
+							}
+						};
+					return new Op() {
+						void run() {
+							retire(dstReg, (registers[rs] & unsignedMask) < (registers[rt] & unsignedMask) ? 1 : 0);
+						}
+					};
+
+				// shifts are done on the sign-extended register, as in execute()
+				case Mips.SLL:
+					if (test(Mips.SRC1SH))
+						return new Op() {
+							void run() {
+								retire(dstReg, (int) ((long) registers[rt] << (sh & 0x1F)));
+							}
+						};
+					return new Op() {
+						void run() {
+							retire(dstReg, (int) ((long) registers[rt] << (registers[rs] & 0x1F)));
+						}
+					};
+				case Mips.SRA:
+					if (test(Mips.SRC1SH))
+						return new Op() {
+							void run() {
+								retire(dstReg, (int) ((long) registers[rt] >> (sh & 0x1F)));
+							}
+						};
+					return new Op() {
+						void run() {
+							retire(dstReg, (int) ((long) registers[rt] >> (registers[rs] & 0x1F)));
+						}
+					};
+				case Mips.SRL:
+					if (test(Mips.SRC1SH))
+						return new Op() {
+							void run() {
+								retire(dstReg, (int) ((long) registers[rt] >>> (sh & 0x1F)));
+							}
+						};
+					return new Op() {
+						void run() {
+							retire(dstReg, (int) ((long) registers[rt] >>> (registers[rs] & 0x1F)));
+						}
+					};
+
+				case Mips.MULT:
+					return new Op() {
+						void run() {
+							long product = (registers[rs] & unsignedMask) * (registers[rt] & unsignedMask);
+							registers[regLo] = (int) Lib.extract(product, 0, 32);
+							registers[regHi] = (int) Lib.extract(product, 32, 32);
+							retire();
+						}
+					};
+				case Mips.MFLO:
+					return new Op() {
+						void run() {
+							retire(dstReg, registers[regLo]);
+						}
+					};
+				case Mips.MFHI:
+					return new Op() {
+						void run() {
+							retire(dstReg, registers[regHi]);
+						}
+					};
+
+				case Mips.BEQ:
+					return new Op() {
+						void run() {
+							retireBranch(registers[rs] == registers[rt], imm, link);
+						}
+					};
+				case Mips.BNE:
+					return new Op() {
+						void run() {
+							retireBranch(registers[rs] != registers[rt], imm, link);
+						}
+					};
+				case Mips.BGEZ:
+					return new Op() {
+						void run() {
+							retireBranch(registers[rs] >= 0, imm, link);
+						}
+					};
+				case Mips.BGTZ:
+					return new Op() {
+						void run() {
+							retireBranch(registers[rs] > 0, imm, link);
+						}
+					};
+				case Mips.BLEZ:
+					return new Op() {
+						void run() {
+							retireBranch(registers[rs] <= 0, imm, link);
+						}
+					};
+				case Mips.BLTZ:
+					return new Op() {
+						void run() {
+							retireBranch(registers[rs] < 0, imm, link);
+						}
+					};
+				case Mips.JUMP:
+					if (format == Mips.JFMT)
+						return new Op() {
+							void run() {
+								retireJump((registers[regNextPC] & 0xF0000000) | jumpTarget, link);
+							}
+						};
+					return new Op() {
+						void run() {
+							retireJump(registers[rs], link);
+						}
+					};
+
+				case Mips.LOAD:
+					return new Op() {
+						void run() throws MipsException {
+							int value = readMem(registers[rs] + imm, size);
+							delayedLoad(dstReg, unsigned ? value : Lib.extend(value, 0, size * 8), 0xFFFFFFFF);
+							advancePC(registers[regNextPC] + 4);
+						}
+					};
+				case Mips.STORE:
+					return new Op() {
+						void run() throws MipsException {
+							int value = registers[rt];
+							writeMem(registers[rs] + imm, size, value);
+							retire();
+						}
+					};
+
+				default:
+					return new InterpretedOp(this);
+			}
+		}
+
 		// state used to execute a single instruction
 		int value, op, rs, rt, rd, sh, func, target, imm;
 		int operation, format, flags;
@@ -1017,6 +2342,514 @@ public final class Processor {
 		long src1, src2, dst;
 		int mask;
 		boolean branch;
+
+		// where this instruction is cached, and whether it came from there
+		int[] decodedPage;
+		int decodedIndex;
+		boolean predecoded;
+	}
+
+	/** An instruction translated for a basic block. */
+	private abstract class Op {
+		abstract void run() throws MipsException;
+	}
+
+	/** An instruction that is still run by the interpreter, minus the decoding. */
+	private class InterpretedOp extends Op {
+		InterpretedOp(Instruction inst) {
+			this.inst = inst;
+		}
+
+		void run() throws MipsException {
+			inst.decodeOperands();
+			inst.execute();
+			inst.writeBack();
+		}
+
+		private Instruction inst;
+	}
+
+	/** A straight-line sequence of translated instructions within one page. */
+	private static class BasicBlock {
+		BasicBlock(int ppn, Op[] ops) {
+			this.ppn = ppn;
+			this.ops = ops;
+		}
+
+		final int ppn;
+		final Op[] ops;
+
+		/** Number of times this block has run, until it is compiled. */
+		int runs = 0;
+		/** The compiled version of this block, if any. */
+		CompiledBlock compiled = null;
+	}
+
+	/**
+	 * A basic block compiled into a JVM class. Not private, since the compiled
+	 * classes are defined in this package as subclasses.
+	 */
+	static abstract class CompiledBlock {
+		/**
+		 * Run the block from its first instruction. On return, the PC registers
+		 * point past the last instruction executed; if an exception is thrown,
+		 * they point at the instruction that caused it.
+		 *
+		 * @param processor the processor running the block.
+		 * @param registers the processor's registers.
+		 * @param ppn       the physical page containing the block.
+		 * @return the number of instructions executed, which is less than the
+		 *         length of the block only if a store overwrote the page.
+		 * @exception MipsException if an instruction caused an exception.
+		 */
+		abstract int run(Processor processor, int[] registers, int ppn) throws MipsException;
+	}
+
+	/**
+	 * Compiles the instructions of a basic block, one at a time, into the
+	 * <tt>run()</tt> method of a new subclass of <tt>CompiledBlock</tt>.
+	 *
+	 * <p>
+	 * The generated code follows the same order as the interpreter: operands are
+	 * read before the previous delayed load completes, and a load's value is held
+	 * in a local variable until the next instruction retires. The PC registers are
+	 * only written before memory accesses, which are the only instructions that
+	 * can cause exceptions, and at the end of the block.
+	 */
+	private class BlockCompiler {
+		BlockCompiler() {
+			cw = new ClassWriter("nachos/machine/Processor$Compiled" + (numCompiledClasses++),
+					"nachos/machine/Processor$CompiledBlock");
+			code = cw.newCode(8, 11);
+
+			loadRegister(regPC);
+			code.op1(ClassWriter.ISTORE, lPC);
+		}
+
+		/**
+		 * Append an instruction to the block. <tt>decodeFields()</tt> must already
+		 * have been called.
+		 *
+		 * @param inst the instruction.
+		 * @return <tt>false</tt> if the instruction cannot be compiled.
+		 */
+		boolean add(Instruction inst) {
+			int operation = inst.operation;
+			int rs = inst.rs, rt = inst.rt, dstReg = inst.dstReg;
+			int imm = inst.test(Mips.UNSIGNED) ? (inst.imm & 0xFFFF) : inst.imm;
+
+			// trapping arithmetic is left to the interpreter, as in makeOp()
+			if (inst.test(Mips.OVERFLOW))
+				return false;
+			// so is a branch in a delay slot
+			if (inDelaySlot && inst.test(Mips.BRANCH))
+				return false;
+
+			switch (operation) {
+				case Mips.ADD:
+				case Mips.SUB:
+				case Mips.AND:
+				case Mips.OR:
+				case Mips.XOR:
+				case Mips.NOR:
+				case Mips.LUI:
+				case Mips.SLT:
+				case Mips.SLL:
+				case Mips.SRA:
+				case Mips.SRL:
+				case Mips.MFLO:
+				case Mips.MFHI:
+					if (dstReg != 0) {
+						startWrite(dstReg);
+						compute(inst, imm);
+						completeLoad();
+						code.op(ClassWriter.IASTORE);
+					} else {
+						completeLoad();
+					}
+					break;
+
+				case Mips.MULT:
+					loadRegister(rs);
+					toLong(inst.test(Mips.UNSIGNED));
+					loadRegister(rt);
+					toLong(inst.test(Mips.UNSIGNED));
+					code.op(ClassWriter.LMUL);
+					code.op1(ClassWriter.LSTORE, lProduct);
+
+					startWrite(regLo);
+					code.op1(ClassWriter.LLOAD, lProduct);
+					code.op(ClassWriter.L2I);
+					code.op(ClassWriter.IASTORE);
+
+					startWrite(regHi);
+					code.op1(ClassWriter.LLOAD, lProduct);
+					code.pushInt(32);
+					code.op(ClassWriter.LUSHR);
+					code.op(ClassWriter.L2I);
+					code.op(ClassWriter.IASTORE);
+
+					completeLoad();
+					break;
+				case Mips.MTLO:
+				case Mips.MTHI:
+					startWrite(operation == Mips.MTLO ? regLo : regHi);
+					loadRegister(rs);
+					code.op(ClassWriter.IASTORE);
+
+					completeLoad();
+					break;
+
+				case Mips.BEQ:
+				case Mips.BNE:
+				case Mips.BGEZ:
+				case Mips.BGTZ:
+				case Mips.BLEZ:
+				case Mips.BLTZ:
+					int taken = code.newLabel(), done = code.newLabel();
+
+					loadRegister(rs);
+					switch (operation) {
+						case Mips.BEQ:
+							loadRegister(rt);
+							code.jump(ClassWriter.IF_ICMPEQ, taken);
+							break;
+						case Mips.BNE:
+							loadRegister(rt);
+							code.jump(ClassWriter.IF_ICMPNE, taken);
+							break;
+						case Mips.BGEZ:
+							code.jump(ClassWriter.IFGE, taken);
+							break;
+						case Mips.BGTZ:
+							code.jump(ClassWriter.IFGT, taken);
+							break;
+						case Mips.BLEZ:
+							code.jump(ClassWriter.IFLE, taken);
+							break;
+						case Mips.BLTZ:
+							code.jump(ClassWriter.IFLT, taken);
+							break;
+					}
+
+					pushPC(length * 4 + 8);
+					code.op1(ClassWriter.ISTORE, lTarget);
+					code.jump(ClassWriter.GOTO, done);
+					code.mark(taken);
+					pushPC(length * 4 + 4 + (imm << 2));
+					code.op1(ClassWriter.ISTORE, lTarget);
+					code.mark(done);
+
+					completeLoad();
+					writeLink(inst);
+					break;
+				case Mips.JUMP:
+					if (inst.format == Mips.JFMT) {
+						pushPC(length * 4 + 4);
+						code.pushInt(0xF0000000);
+						code.op(ClassWriter.IAND);
+						code.pushInt(inst.target << 2);
+						code.op(ClassWriter.IOR);
+					} else {
+						loadRegister(rs);
+					}
+					code.op1(ClassWriter.ISTORE, lTarget);
+
+					completeLoad();
+					writeLink(inst);
+					break;
+
+				case Mips.LOAD:
+					loadRegister(rs);
+					code.pushInt(imm);
+					code.op(ClassWriter.IADD);
+					code.op1(ClassWriter.ISTORE, lAddr);
+
+					completeLoad();
+					writePC();
+
+					code.op1(ClassWriter.ALOAD, lProcessor);
+					code.op1(ClassWriter.ILOAD, lAddr);
+					code.pushInt(inst.size);
+					code.op2(ClassWriter.INVOKEVIRTUAL, cw.methodRef(processorClass, "readMem", "(II)I"));
+					if (!inst.test(Mips.UNSIGNED) && inst.size == 1)
+						code.op(ClassWriter.I2B);
+					else if (!inst.test(Mips.UNSIGNED) && inst.size == 2)
+						code.op(ClassWriter.I2S);
+					code.op1(ClassWriter.ISTORE, lLoadValue);
+
+					pendingLoad = dstReg;
+					break;
+				case Mips.STORE:
+					loadRegister(rs);
+					code.pushInt(imm);
+					code.op(ClassWriter.IADD);
+					code.op1(ClassWriter.ISTORE, lAddr);
+					loadRegister(rt);
+					code.op1(ClassWriter.ISTORE, lValue);
+
+					completeLoad();
+					writePC();
+
+					code.op1(ClassWriter.ALOAD, lProcessor);
+					code.op1(ClassWriter.ILOAD, lAddr);
+					code.pushInt(inst.size);
+					code.op1(ClassWriter.ILOAD, lValue);
+					code.op2(ClassWriter.INVOKEVIRTUAL, cw.methodRef(processorClass, "writeMem", "(III)V"));
+
+					// stop if the store overwrote the rest of this block
+					if (!inDelaySlot) {
+						int valid = code.newLabel();
+
+						code.op1(ClassWriter.ALOAD, lProcessor);
+						code.op1(ClassWriter.ILOAD, lPPN);
+						code.op2(ClassWriter.INVOKEVIRTUAL, cw.methodRef(processorClass, "hasBlocks", "(I)Z"));
+						code.jump(ClassWriter.IFNE, valid);
+
+						storePC(regPC, length * 4 + 4);
+						storePC(regNextPC, length * 4 + 8);
+						code.pushInt(length + 1);
+						code.op(ClassWriter.IRETURN);
+
+						code.mark(valid);
+					}
+					break;
+
+				default:
+					return false;
+			}
+
+			if (inDelaySlot)
+				endsWithBranch = true;
+			inDelaySlot = inst.test(Mips.BRANCH);
+
+			length++;
+			return true;
+		}
+
+		/**
+		 * Finish the block and return the class file for it.
+		 *
+		 * @return the class file.
+		 */
+		byte[] finish() {
+			if (endsWithBranch) {
+				startWrite(regPC);
+				code.op1(ClassWriter.ILOAD, lTarget);
+				code.op(ClassWriter.IASTORE);
+
+				startWrite(regNextPC);
+				code.op1(ClassWriter.ILOAD, lTarget);
+				code.pushInt(4);
+				code.op(ClassWriter.IADD);
+				code.op(ClassWriter.IASTORE);
+			} else {
+				// the block may end at a page boundary, even between a branch and
+				// its delay slot
+				storePC(regPC, length * 4);
+				if (inDelaySlot) {
+					startWrite(regNextPC);
+					code.op1(ClassWriter.ILOAD, lTarget);
+					code.op(ClassWriter.IASTORE);
+				} else {
+					storePC(regNextPC, length * 4 + 4);
+				}
+			}
+
+			// a load in the last instruction is still in progress
+			if (pendingLoad != 0) {
+				code.op1(ClassWriter.ALOAD, lProcessor);
+				code.pushInt(pendingLoad);
+				code.op1(ClassWriter.ILOAD, lLoadValue);
+				code.pushInt(0xFFFFFFFF);
+				code.op2(ClassWriter.INVOKEVIRTUAL, cw.methodRef(processorClass, "delayedLoad", "(III)V"));
+			}
+
+			code.pushInt(length);
+			code.op(ClassWriter.IRETURN);
+			cw.addMethod(0, "run", "(L" + processorClass + ";[II)I", code);
+
+			ClassWriter.Code init = cw.newCode(1, 1);
+			init.op1(ClassWriter.ALOAD, lThis);
+			init.op2(ClassWriter.INVOKESPECIAL,
+					cw.methodRef("nachos/machine/Processor$CompiledBlock", "<init>", "()V"));
+			init.op(ClassWriter.RETURN);
+			cw.addMethod(ClassWriter.accPublic, "<init>", "()V", init);
+
+			return cw.toByteArray();
+		}
+
+		/** Push the result of an instruction that only writes its dstReg. */
+		private void compute(Instruction inst, int imm) {
+			boolean unsigned = inst.test(Mips.UNSIGNED);
+
+			switch (inst.operation) {
+				case Mips.ADD:
+					loadRegister(inst.rs);
+					readSource2(inst, imm);
+					code.op(ClassWriter.IADD);
+					break;
+				case Mips.SUB:
+					loadRegister(inst.rs);
+					loadRegister(inst.rt);
+					code.op(ClassWriter.ISUB);
+					break;
+				case Mips.AND:
+					loadRegister(inst.rs);
+					readSource2(inst, imm);
+					code.op(ClassWriter.IAND);
+					break;
+				case Mips.OR:
+					loadRegister(inst.rs);
+					readSource2(inst, imm);
+					code.op(ClassWriter.IOR);
+					break;
+				case Mips.XOR:
+					loadRegister(inst.rs);
+					readSource2(inst, imm);
+					code.op(ClassWriter.IXOR);
+					break;
+				case Mips.NOR:
+					loadRegister(inst.rs);
+					loadRegister(inst.rt);
+					code.op(ClassWriter.IOR);
+					code.pushInt(-1);
+					code.op(ClassWriter.IXOR);
+					break;
+				case Mips.LUI:
+					code.pushInt(imm << 16);
+					break;
+				case Mips.SLT:
+					// flipping the sign bits turns an unsigned compare into a signed one
+					loadRegister(inst.rs);
+					if (unsigned) {
+						code.pushInt(0x80000000);
+						code.op(ClassWriter.IXOR);
+					}
+					readSource2(inst, imm);
+					if (unsigned) {
+						code.pushInt(0x80000000);
+						code.op(ClassWriter.IXOR);
+					}
+
+					int less = code.newLabel(), done = code.newLabel();
+					code.jump(ClassWriter.IF_ICMPLT, less);
+					code.pushInt(0);
+					code.jump(ClassWriter.GOTO, done);
+					code.mark(less);
+					code.pushInt(1);
+					code.mark(done);
+					break;
+
+				// the interpreter shifts the sign-extended register right, which
+				// makes SRL the same as SRA for every shift amount below 32
+				case Mips.SLL:
+				case Mips.SRA:
+				case Mips.SRL:
+					loadRegister(inst.rt);
+					if (inst.test(Mips.SRC1SH))
+						code.pushInt(inst.sh);
+					else
+						loadRegister(inst.rs);
+					code.op(inst.operation == Mips.SLL ? ClassWriter.ISHL : ClassWriter.ISHR);
+					break;
+
+				case Mips.MFLO:
+					loadRegister(regLo);
+					break;
+				case Mips.MFHI:
+					loadRegister(regHi);
+					break;
+
+				default:
+					Lib.assertNotReached();
+			}
+		}
+
+		private void loadRegister(int number) {
+			code.op1(ClassWriter.ALOAD, lRegisters);
+			code.pushInt(number);
+			code.op(ClassWriter.IALOAD);
+		}
+
+		private void readSource2(Instruction inst, int imm) {
+			if (inst.test(Mips.SRC2IMM))
+				code.pushInt(imm);
+			else
+				loadRegister(inst.rt);
+		}
+
+		/** Push the register array and index, ready for a value and IASTORE. */
+		private void startWrite(int number) {
+			code.op1(ClassWriter.ALOAD, lRegisters);
+			code.pushInt(number);
+		}
+
+		/** Write the address of the block plus an offset to a register. */
+		private void storePC(int number, int offset) {
+			startWrite(number);
+			pushPC(offset);
+			code.op(ClassWriter.IASTORE);
+		}
+
+		private void pushPC(int offset) {
+			code.op1(ClassWriter.ILOAD, lPC);
+			code.pushInt(offset);
+			code.op(ClassWriter.IADD);
+		}
+
+		private void toLong(boolean unsigned) {
+			code.op(ClassWriter.I2L);
+			if (unsigned) {
+				code.pushInt(32);
+				code.op(ClassWriter.LSHL);
+				code.pushInt(32);
+				code.op(ClassWriter.LUSHR);
+			}
+		}
+
+		/** Complete the delayed load of the previous instruction, if any. */
+		private void completeLoad() {
+			if (pendingLoad != 0) {
+				startWrite(pendingLoad);
+				code.op1(ClassWriter.ILOAD, lLoadValue);
+				code.op(ClassWriter.IASTORE);
+			}
+			pendingLoad = 0;
+		}
+
+		/** Bring the PC registers up to date before an instruction can fail. */
+		private void writePC() {
+			storePC(regPC, length * 4);
+			if (inDelaySlot) {
+				startWrite(regNextPC);
+				code.op1(ClassWriter.ILOAD, lTarget);
+				code.op(ClassWriter.IASTORE);
+			} else {
+				storePC(regNextPC, length * 4 + 4);
+			}
+		}
+
+		private void writeLink(Instruction inst) {
+			if (inst.test(Mips.LINK) && inst.dstReg != 0)
+				storePC(inst.dstReg, length * 4 + 8);
+		}
+
+		private ClassWriter cw;
+		private ClassWriter.Code code;
+
+		/** Number of instructions compiled so far. */
+		private int length = 0;
+		/** Target of the load in the previous instruction, or 0. */
+		private int pendingLoad = 0;
+		private boolean inDelaySlot = false;
+		private boolean endsWithBranch = false;
+
+		private static final String processorClass = "nachos/machine/Processor";
+
+		// local variables of the run() method
+		private static final int lThis = 0, lProcessor = 1, lRegisters = 2, lPPN = 3, lPC = 4, lLoadValue = 5,
+				lTarget = 6, lAddr = 7, lValue = 8, lProduct = 9;
 	}
 
 	private static class Mips {
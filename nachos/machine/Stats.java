@@ -16,6 +16,13 @@ public final class Stats {
 
     /**
      * Print out the statistics in this object.
+     *
+     * <p>
+     * The TLB miss rate is taken over the lookups counted by the micro-TLB,
+     * which sees only the processor's fast path. It is meaningful only when the
+     * processor interprets one instruction at a time without tracing; block
+     * translation and the JIT look up the TLB less often, and tracing not at
+     * all through the fast path.
      */
     public void print() {
 	System.out.println("Ticks: total " + totalTicks
@@ -27,6 +34,13 @@ public final class Stats {
 			   + ", writes " + numConsoleWrites);
 	System.out.println("Paging: page faults " + numPageFaults
 			   + ", TLB misses " + numTLBMisses);
+	if (numTLBMisses > 0 && numMicroTLBHits + numMicroTLBMisses > 0)
+	    System.out.println("TLB miss rate: "
+			       + (10000L * numTLBMisses / (numMicroTLBHits + numMicroTLBMisses)) / 10.0
+			       + " per 1000 lookups");
+	if (numMicroTLBHits + numMicroTLBMisses > 0)
+	    System.out.println("Micro-TLB: hits " + numMicroTLBHits
+			       + ", misses " + numMicroTLBMisses);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
     }
@@ -57,6 +71,14 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /**
+     * The number of TLB lookups found in the processor's micro-TLB. Every
+     * call to translate a user address counts, so this depends on how the
+     * processor runs instructions as well as on the program.
+     */
+    public long numMicroTLBHits = 0;
+    /** The number of TLB lookups that had to search the whole TLB. */
+    public long numMicroTLBMisses = 0;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
@@ -5,7 +5,9 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
+import java.lang.reflect.Method;
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +16,18 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * Only one TCB runs at a time, and a context switch hands control directly
+ * from one JVM thread to the next by parking and unparking them. If
+ * <tt>TCB.virtualThreads</tt> is set and the JVM supports virtual threads,
+ * each TCB after the first runs in a virtual thread, so that a context switch
+ * does not involve the operating system's scheduler at all.
+ *
+ * <p>
+ * Otherwise, if <tt>TCB.poolSize</tt> is positive, up to that many Java
+ * threads are kept once their TCBs are destroyed, and reused to run new TCBs.
+ * <tt>TCB.maxThreads</tt> limits the number of TCBs that can exist at once.
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +54,43 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	maxThreads = Config.getInteger("TCB.maxThreads", 250);
+	Lib.assertTrue(maxThreads > 0, "TCB.maxThreads must be positive");
+
+	if (Config.getBoolean("TCB.virtualThreads", false))
+	    findVirtualThreads();
+
+	// virtual threads are cheap enough to create fresh each time
+	if (newVirtualThread == null)
+	    poolSize = Config.getInteger("TCB.poolSize", 0);
+    }
+
+    /**
+     * Return the maximum number of started, non-destroyed TCBs that can exist
+     * at once.
+     *
+     * @return	the value of <tt>TCB.maxThreads</tt>.
+     */
+    public static int getMaxThreads() {
+	return maxThreads;
+    }
+
+    /**
+     * Look up <tt>Thread.ofVirtual().unstarted()</tt>, which only exists in
+     * newer JVMs, by reflection. If it is missing, TCBs use platform threads.
+     */
+    private static void findVirtualThreads() {
+	try {
+	    virtualThreadBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+	    newVirtualThread = Class.forName("java.lang.Thread$Builder")
+		.getMethod("unstarted", Runnable.class);
+	}
+	catch (Exception e) {
+	    System.out.print(" (virtual threads not supported)");
+	    virtualThreadBuilder = null;
+	    newVirtualThread = null;
+	}
     }
     
     /**
@@ -85,18 +136,44 @@ public final class TCB {
 
 	this.target = target;
 
-	if (!isFirstTCB) {
+	if (!isFirstTCB && !idleWorkers.isEmpty()) {
+	    /* A pooled Java thread is parked waiting for a TCB to run. We
+	     * hand it this one and wait for threadroot() to wake us up, just
+	     * as we would for a new Java thread.
+	     */
+	    worker = idleWorkers.remove(idleWorkers.size()-1);
+	    javaThread = worker.thread;
+
+	    currentTCB.running = false;
+
+	    worker.tcb = this;
+	    LockSupport.unpark(javaThread);
+	    currentTCB.waitForInterrupt();
+	}
+	else if (!isFirstTCB) {
 	    /* If this is not the first TCB, we have to make a new Java thread
-	     * to run it. Creating Java threads is a privileged operation.
+	     * to run it. Creating Java threads is a privileged operation. If
+	     * Java threads are pooled, the new thread is a worker that can
+	     * go on to run other TCBs after this one.
 	     */
-	    tcbTarget = new Runnable() {
-		    public void run() { threadroot(); }
-		};
+	    if (poolSize > 0) {
+		worker = new Worker();
+		worker.tcb = this;
+		tcbTarget = worker;
+	    }
+	    else {
+		tcbTarget = new Runnable() {
+			public void run() { threadroot(); }
+		    };
+	    }
 
 	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
+		    public void run() { javaThread = newThread(tcbTarget); }
 		});
 
+	    if (worker != null)
+		worker.thread = javaThread;
+
 	    /* The Java thread hasn't yet started, but we need to get it
 	     * blocking in yield(). We do this by temporarily turning off the
 	     * current TCB, starting the new Java thread, and waiting for it
@@ -119,6 +196,23 @@ public final class TCB {
 	}
     }
 
+    /**
+     * Create the Java thread for a new TCB: a virtual thread if they are in
+     * use, otherwise a platform thread.
+     */
+    private static Thread newThread(Runnable target) {
+	if (newVirtualThread == null)
+	    return new Thread(target);
+
+	try {
+	    return (Thread) newVirtualThread.invoke(virtualThreadBuilder, target);
+	}
+	catch (Exception e) {
+	    Lib.assertNotReached("cannot create virtual thread: " + e);
+	    return null;
+	}
+    }
+
     /**
      * Return the TCB of the currently running thread.
      */
@@ -272,6 +366,14 @@ public final class TCB {
 	waitForInterrupt();
 	
 	if (done) {
+	    /* Return our Java thread to the pool while destroy() is still
+	     * waiting, so that the next start() can already reuse it.
+	     */
+	    if (worker != null && idleWorkers.size() < poolSize) {
+		worker.tcb = null;
+		idleWorkers.add(worker);
+	    }
+	    
 	    currentTCB.interrupt();
 	    throw new ThreadDeath();
 	}
@@ -280,29 +382,29 @@ public final class TCB {
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
+     * Parks the Java thread bound to this TCB until its <tt>running</tt> flag
      * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
      * TCB needs to go to wait for its turn to run. This includes the ping-pong
      * process of starting and destroying TCBs, as well as in context switching
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
-	}
+    private void waitForInterrupt() {
+	// park() can return spuriously, so check the flag again each time
+	while (!running)
+	    LockSupport.park(this);
     }
 
     /**
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
-     * TCB.
+     * and unparking the Java thread bound to it. Used in the ping-pong process
+     * of starting and destroying TCBs, as well as in context switching to this
+     * TCB. If the thread has not parked yet, it will see the flag and not
+     * park at all.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
 	running = true;
-	notify();
+	LockSupport.unpark(javaThread);
     }
 
     private void associateThread(KThread thread) {
@@ -326,11 +428,48 @@ public final class TCB {
 	toBeDestroyed = thread;
     }
 
+    /**
+     * A Java thread that can run one TCB after another. Once the TCB it is
+     * running is destroyed, <tt>yield()</tt> may put the worker in
+     * <tt>idleWorkers</tt>, where it parks until <tt>start()</tt> gives it a
+     * new TCB.
+     */
+    private static class Worker implements Runnable {
+	public void run() {
+	    while (true) {
+		while (tcb == null)
+		    LockSupport.park(this);
+
+		TCB current = tcb;
+		current.threadroot();
+
+		// yield() clears tcb if it put us back in the pool
+		if (tcb == current)
+		    return;
+	    }
+	}
+
+	private Thread thread;
+	private volatile TCB tcb;
+    }
+
     /**
      * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * existence. Set from <tt>TCB.maxThreads</tt>.
+     */
+    private static int maxThreads = 250;
+
+    /**
+     * The maximum number of idle Java threads to keep for reuse. Set from
+     * <tt>TCB.poolSize</tt>; zero if threads are not pooled.
      */
-    public static final int maxThreads = 250;
+    private static int poolSize = 0;
+
+    /**
+     * Workers whose TCBs have been destroyed, waiting to run new TCBs. Only
+     * the running TCB uses this, so it needs no further synchronization.
+     */
+    private static Vector<Worker> idleWorkers = new Vector<Worker>();
 
     /**
      * A reference to the currently running TCB. It is initialized to
@@ -364,6 +503,13 @@ public final class TCB {
     private static Privilege privilege;
     private static KThread toBeDestroyed = null;
 
+    /**
+     * <tt>Thread.ofVirtual()</tt> and <tt>Thread.Builder.unstarted()</tt>, or
+     * <tt>null</tt> if TCBs use platform threads.
+     */
+    private static Object virtualThreadBuilder = null;
+    private static Method newVirtualThread = null;
+
     /**
      * <tt>true</tt> if and only if this TCB is the first TCB to start, the one
      * started in <tt>Machine.main(String[])</tt>. Initialized by
@@ -387,8 +533,13 @@ public final class TCB {
      * when the associated Java thread ought to run ASAP. When starting or
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
+     *
+     * <p>
+     * Each context switch sets this flag in one Java thread and reads it in
+     * another, so it is volatile; that also makes everything the old thread
+     * did visible to the new one.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -397,6 +548,9 @@ public final class TCB {
      */
     private boolean done = false;
     
+    /** The worker running this TCB, if Java threads are pooled. */
+    private Worker worker = null;
+
     private KThread nachosThread = null;
     private boolean associated = false;
     private Runnable target;
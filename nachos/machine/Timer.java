@@ -13,6 +13,10 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is a
  * small degree of randomness here, so interrupts do not occur exactly every 500
  * ticks.
+ *
+ * <p>
+ * If there is more than one core, each core has its own timer, which
+ * interrupts that core by its own time.
  */
 public final class Timer {
     /**
@@ -37,7 +41,23 @@ public final class Timer {
             }
         };
 
-        scheduleInterrupt();
+        int numCores = Machine.numCores();
+        if (numCores == 1) {
+            scheduleInterrupt();
+            return;
+        }
+
+        coreTimerInterrupts = new Runnable[numCores];
+        for (int core = 0; core < numCores; core++) {
+            final int which = core;
+            coreTimerInterrupts[core] = new Runnable() {
+                public void run() {
+                    timerInterrupt(which);
+                }
+            };
+
+            scheduleInterrupt(core);
+        }
     }
 
     /**
@@ -69,11 +89,29 @@ public final class Timer {
             handler.run();
     }
 
+    private void timerInterrupt(int core) {
+        scheduleInterrupt(core);
+        scheduleAutoGraderInterrupt();
+
+        lastTimerInterrupt = getTime();
+
+        if (handler != null)
+            handler.run();
+    }
+
     private void scheduleInterrupt() {
+        privilege.interrupt.schedule(interruptDelay(), "timer", timerInterrupt);
+    }
+
+    private void scheduleInterrupt(int core) {
+        privilege.interrupt.schedule(interruptDelay(), "timer", coreTimerInterrupts[core], core);
+    }
+
+    private int interruptDelay() {
         int delay = Stats.TimerTicks;
         delay += Lib.random(delay / 10) - (delay / 20);
 
-        privilege.interrupt.schedule(delay, "timer", timerInterrupt);
+        return delay;
     }
 
     private void scheduleAutoGraderInterrupt() {
@@ -82,6 +120,8 @@ public final class Timer {
 
     private long lastTimerInterrupt;
     private Runnable timerInterrupt;
+    /** One timer interrupt handler per core, if there is more than one. */
+    private Runnable[] coreTimerInterrupts;
     private Runnable autoGraderInterrupt;
 
     private Privilege privilege;
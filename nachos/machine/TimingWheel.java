@@ -0,0 +1,268 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Vector;
+
+/**
+ * A hierarchical timing wheel, used by <tt>Interrupt</tt> to hold pending
+ * interrupts when there are too many for a sorted set.
+ *
+ * <p>
+ * Times are split into 6-bit digits, and the wheel has one level of 64 slots
+ * per digit. An event goes in the level of the highest digit in which its time
+ * differs from the wheel's current time, in the slot given by that digit. When
+ * the current time moves into a slot at a higher level, that slot's events are
+ * moved down a level or more. Level 0 slots each hold events for a single time,
+ * so events are added and removed in constant time, and a bitmap of non-empty
+ * slots per level finds the earliest event quickly.
+ *
+ * <p>
+ * Each slot is a list in the order its events were added, and moving events
+ * down keeps that order, so events due at the same time come out in the order
+ * they were added. Event objects are reused once removed.
+ */
+final class TimingWheel {
+	/**
+	 * Allocate a new, empty timing wheel.
+	 */
+	TimingWheel() {
+		for (int level = 0; level < numLevels; level++) {
+			heads[level] = new Event[slotsPerLevel];
+			tails[level] = new Event[slotsPerLevel];
+		}
+	}
+
+	/**
+	 * Test whether the wheel is empty.
+	 *
+	 * @return <tt>true</tt> if there are no events.
+	 */
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Add an event. Its time must not be earlier than that of the last event
+	 * removed.
+	 *
+	 * @param time    the time at which the event is due.
+	 * @param type    a name for the type of event.
+	 * @param handler the handler to call.
+	 */
+	void add(long time, String type, Runnable handler) {
+		Lib.assertTrue(time >= now);
+
+		Event event = freeEvents;
+		if (event != null)
+			freeEvents = event.next;
+		else
+			event = new Event();
+
+		event.time = time;
+		event.type = type;
+		event.handler = handler;
+		event.id = numEventsAdded++;
+
+		insert(event);
+
+		// a new event due at the same time as the first comes after it
+		if (size == 0 || (first != null && time < first.time))
+			first = event;
+
+		size++;
+	}
+
+	/**
+	 * Return the time of the earliest event.
+	 *
+	 * @return the time at which the first event is due, or
+	 *         <tt>Long.MAX_VALUE</tt> if there are none.
+	 */
+	long firstTime() {
+		if (size == 0)
+			return Long.MAX_VALUE;
+
+		return first().time;
+	}
+
+	/**
+	 * Return the type of the earliest event. The wheel must not be empty.
+	 *
+	 * @return the type of the first event.
+	 */
+	String firstType() {
+		return first().type;
+	}
+
+	/**
+	 * Return the handler of the earliest event. The wheel must not be empty.
+	 *
+	 * @return the handler of the first event.
+	 */
+	Runnable firstHandler() {
+		return first().handler;
+	}
+
+	/**
+	 * Remove the earliest event, and move the wheel's current time up to the
+	 * time it was due.
+	 */
+	void removeFirst() {
+		Event event = first();
+
+		advance(event.time);
+
+		int slot = (int) (event.time & slotMask);
+		Lib.assertTrue(heads[0][slot] == event);
+
+		heads[0][slot] = event.next;
+		if (event.next == null) {
+			tails[0][slot] = null;
+			bitmaps[0] &= ~(1L << slot);
+		}
+
+		size--;
+		first = null;
+
+		event.type = null;
+		event.handler = null;
+		event.next = freeEvents;
+		freeEvents = event;
+	}
+
+	/**
+	 * Return all of the events, sorted by time and then by the order they were
+	 * added. For debugging only; this takes time proportional to the number of
+	 * events.
+	 *
+	 * @return the sorted events.
+	 */
+	Vector<Event> events() {
+		Vector<Event> events = new Vector<Event>();
+
+		for (int level = 0; level < numLevels; level++) {
+			for (int slot = 0; slot < slotsPerLevel; slot++) {
+				for (Event event = heads[level][slot]; event != null; event = event.next)
+					events.add(event);
+			}
+		}
+
+		Collections.sort(events, new Comparator<Event>() {
+			public int compare(Event a, Event b) {
+				if (a.time != b.time)
+					return (a.time < b.time) ? -1 : 1;
+				else
+					return (a.id < b.id) ? -1 : (a.id > b.id) ? 1 : 0;
+			}
+		});
+
+		return events;
+	}
+
+	private Event first() {
+		Lib.assertTrue(size > 0);
+
+		if (first == null)
+			first = findFirst();
+
+		return first;
+	}
+
+	/**
+	 * Find the earliest event. Every event in a lower level is due before every
+	 * event in a higher level, and within a level earlier slots are due first.
+	 * A level 0 slot holds events for one time, but a slot in a higher level has
+	 * to be searched.
+	 */
+	private Event findFirst() {
+		for (int level = 0; level < numLevels; level++) {
+			if (bitmaps[level] == 0)
+				continue;
+
+			Event best = heads[level][Long.numberOfTrailingZeros(bitmaps[level])];
+			for (Event event = best.next; event != null; event = event.next) {
+				if (event.time < best.time)
+					best = event;
+			}
+
+			return best;
+		}
+
+		Lib.assertNotReached();
+		return null;
+	}
+
+	/**
+	 * Move the current time forward, to no later than the earliest event. Any
+	 * slot the new time falls into is emptied into the levels below it, highest
+	 * level first, so that all of the earliest events end up in level 0.
+	 */
+	private void advance(long time) {
+		Lib.assertTrue(time >= now);
+
+		now = time;
+
+		for (int level = numLevels - 1; level > 0; level--) {
+			int slot = (int) ((now >>> (level * bitsPerLevel)) & slotMask);
+			if ((bitmaps[level] & (1L << slot)) == 0)
+				continue;
+
+			Event event = heads[level][slot];
+			heads[level][slot] = null;
+			tails[level][slot] = null;
+			bitmaps[level] &= ~(1L << slot);
+
+			while (event != null) {
+				Event next = event.next;
+				insert(event);
+				event = next;
+			}
+		}
+	}
+
+	private void insert(Event event) {
+		long diff = event.time ^ now;
+		int level = (diff == 0) ? 0 : (63 - Long.numberOfLeadingZeros(diff)) / bitsPerLevel;
+		int slot = (int) ((event.time >>> (level * bitsPerLevel)) & slotMask);
+
+		event.next = null;
+		if (tails[level][slot] == null)
+			heads[level][slot] = event;
+		else
+			tails[level][slot].next = event;
+		tails[level][slot] = event;
+
+		bitmaps[level] |= (1L << slot);
+	}
+
+	/** An event in the wheel. */
+	static final class Event {
+		long time;
+		String type;
+		Runnable handler;
+
+		private long id;
+		private Event next;
+	}
+
+	private static final int bitsPerLevel = 6;
+	private static final int slotsPerLevel = 1 << bitsPerLevel;
+	private static final int slotMask = slotsPerLevel - 1;
+	/** Enough levels to cover every bit of a <tt>long</tt>. */
+	private static final int numLevels = (64 + bitsPerLevel - 1) / bitsPerLevel;
+
+	/** The time of the last event removed. */
+	private long now = 0;
+	private int size = 0;
+	private long numEventsAdded = 0;
+	/** The earliest event, or <tt>null</tt> if it has to be found again. */
+	private Event first = null;
+	private Event freeEvents = null;
+
+	private Event[][] heads = new Event[numLevels][];
+	private Event[][] tails = new Event[numLevels][];
+	private long[] bitmaps = new long[numLevels];
+}
@@ -48,6 +48,7 @@ public final class TranslationEntry {
 	readOnly = entry.readOnly;
 	used = entry.used;
 	dirty = entry.dirty;
+	asid = entry.asid;
     }
 
     /** The virtual page number. */
@@ -78,4 +79,11 @@ public final class TranslationEntry {
      * user program.
      */
     public boolean dirty;
+
+    /**
+     * The address-space identifier of the process this entry belongs to. A TLB
+     * entry only translates addresses while its ASID is the processor's
+     * current one; see <tt>Processor.setASID()</tt>. Page tables ignore it.
+     */
+    public int asid;
 }
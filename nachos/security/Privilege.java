@@ -149,6 +149,20 @@ public abstract class Privilege {
 	 * @param	handler	the interrupt handler to call.
 	 */
 	public void schedule(long when, String type, Runnable handler);
+
+	/**
+	 * Schedule an interrupt to occur on a particular core at some time in
+	 * the future.
+	 *
+	 * @param	when	the number of ticks until the interrupt should
+	 *			occur.
+	 * @param	type	a name for the type of interrupt being
+	 *			scheduled.
+	 * @param	handler	the interrupt handler to call.
+	 * @param	core	the core that should handle the interrupt.
+	 */
+	public void schedule(long when, String type, Runnable handler,
+			     int core);
 	
 	/**
 	 * Advance the simulated time.
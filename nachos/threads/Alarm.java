@@ -42,6 +42,7 @@ public class Alarm {
            //  System.out.println("Making " + k.getName() + " ready at " + Machine.timer().getTime());
             k.ready();
         }
+        ThreadedKernel.scheduler.timerInterrupt();
         KThread.yield();
 
         Machine.interrupt().restore(intStatus);
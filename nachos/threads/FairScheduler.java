@@ -0,0 +1,263 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * A completely fair scheduler. Each thread has a virtual runtime: the ticks it
+ * has spent running, as measured by <tt>KThread.getRunTime()</tt>, scaled down
+ * by its weight. The next thread to be dequeued is always the one with the
+ * smallest virtual runtime, so over time every thread gets a share of the
+ * processor in proportion to its weight, however many threads there are.
+ *
+ * <p>
+ * Weights come from priorities, which have the same range as those of
+ * <tt>PriorityScheduler</tt>. A thread at the default priority has weight
+ * 1024, and each step up or down multiplies or divides it by 1.25. Priority is
+ * not donated.
+ *
+ * <p>
+ * Each queue is a red-black tree (a <tt>TreeSet</tt>) sorted by virtual
+ * runtime, so adding a thread and removing the next one take logarithmic time.
+ * A new thread starts at the largest virtual runtime dequeued so far, and a
+ * thread that has been blocked is brought up to a little below that, so
+ * neither can run for long before the threads that were already waiting. A
+ * thread woken with a virtual runtime well below that of the current thread
+ * makes <tt>preemptPending()</tt> return <tt>true</tt>.
+ *
+ * <p>
+ * To use this scheduler, set <tt>ThreadedKernel.scheduler</tt> to
+ * <tt>nachos.threads.FairScheduler</tt>.
+ */
+public class FairScheduler extends Scheduler {
+	/**
+	 * Allocate a new fair scheduler.
+	 */
+	public FairScheduler() {
+	}
+
+	/**
+	 * Allocate a new fair thread queue.
+	 *
+	 * @param transferPriority ignored. Priority is not donated.
+	 * @return a new fair thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new FairQueue();
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).priority;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= PriorityScheduler.priorityMinimum
+				&& priority <= PriorityScheduler.priorityMaximum);
+
+		ThreadState state = getThreadState(thread);
+
+		// charge the time run so far at the old weight
+		state.update();
+		state.priority = priority;
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		boolean changed = (priority < PriorityScheduler.priorityMaximum);
+		if (changed)
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return changed;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		boolean changed = (priority > PriorityScheduler.priorityMinimum);
+		if (changed)
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return changed;
+	}
+
+	/**
+	 * Test whether a thread has been woken up since the last call with a virtual
+	 * runtime enough below the current thread's that it should run first.
+	 */
+	public boolean preemptPending() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		boolean pending = preemptPending;
+		preemptPending = false;
+
+		return pending;
+	}
+
+	public void timerInterrupt() {
+		// the alarm is about to yield anyway
+		preemptPending = false;
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	private class FairQueue extends ThreadQueue {
+		/**
+		 * Add a thread to the tree. The current thread is yielding or blocking,
+		 * and is first charged for the time it has run. Any other thread is new or
+		 * has been woken up, and is brought up to date with the threads that kept
+		 * running meanwhile.
+		 *
+		 * @param thread the thread to add.
+		 */
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			Lib.assertTrue(state.queue == null);
+
+			state.update();
+
+			KThread current = KThread.currentThread();
+			if (thread != current) {
+				state.vruntime = Math.max(state.vruntime, minVruntime - sleeperCredit);
+
+				ThreadState running = getThreadState(current);
+				running.update();
+				if (state.vruntime + wakeupGranularity < running.vruntime)
+					preemptPending = true;
+			}
+
+			state.queue = this;
+			state.sequence = numWaits++;
+			threads.add(state);
+		}
+
+		/**
+		 * Remove the thread with the smallest virtual runtime.
+		 *
+		 * @return that thread, or <tt>null</tt> if the queue is empty.
+		 */
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (threads.isEmpty())
+				return null;
+
+			ThreadState state = threads.pollFirst();
+			state.queue = null;
+
+			minVruntime = Math.max(minVruntime, state.vruntime);
+
+			return state.thread;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (Iterator<ThreadState> i = threads.iterator(); i.hasNext();) {
+				ThreadState state = i.next();
+				System.out.print(state.thread + " (" + state.vruntime + ") ");
+			}
+			System.out.println();
+		}
+
+		/** Sorted by virtual runtime, then by when they started waiting. */
+		private TreeSet<ThreadState> threads = new TreeSet<ThreadState>();
+	}
+
+	/**
+	 * The scheduling state of a thread: its priority and virtual runtime.
+	 */
+	protected class ThreadState implements Comparable<ThreadState> {
+		ThreadState(KThread thread) {
+			this.thread = thread;
+			vruntime = minVruntime;
+			charged = thread.getRunTime();
+		}
+
+		/**
+		 * Add the ticks run since the last update, divided by the weight, to the
+		 * virtual runtime. A thread in a tree is not updated, since that would
+		 * move it; it is charged when it next leaves one.
+		 */
+		void update() {
+			if (queue != null)
+				return;
+
+			long runTime = thread.getRunTime();
+			vruntime += (runTime - charged) * weights[PriorityScheduler.priorityDefault] / weights[priority];
+			charged = runTime;
+		}
+
+		public int compareTo(ThreadState state) {
+			if (vruntime != state.vruntime)
+				return (vruntime < state.vruntime) ? -1 : 1;
+			else if (sequence != state.sequence)
+				return (sequence < state.sequence) ? -1 : 1;
+			else
+				return 0;
+		}
+
+		private KThread thread;
+		private int priority = PriorityScheduler.priorityDefault;
+		private long vruntime;
+		/** The run time of the thread when it was last charged. */
+		private long charged;
+
+		/** The queue the thread is waiting in, or <tt>null</tt>. */
+		private FairQueue queue = null;
+		/** When it started waiting, for breaking ties. */
+		private long sequence;
+	}
+
+	/** The weight of each priority: 1024 at the default, scaled by 1.25 a step. */
+	private static final long[] weights = new long[PriorityScheduler.priorityMaximum + 1];
+	static {
+		for (int priority = 0; priority < weights.length; priority++)
+			weights[priority] = Math.round(1024 * Math.pow(1.25, priority - PriorityScheduler.priorityDefault));
+	}
+
+	/** How far below <tt>minVruntime</tt> a woken thread may be placed. */
+	private static final long sleeperCredit = Stats.TimerTicks / 2;
+	/** How far a woken thread must be behind the current one to preempt it. */
+	private static final long wakeupGranularity = Stats.TimerTicks / 5;
+
+	/** The largest virtual runtime dequeued so far. */
+	private long minVruntime = 0;
+	private long numWaits = 0;
+	private boolean preemptPending = false;
+}
@@ -37,10 +37,18 @@ import nachos.machine.*;
  * </pre>
  * 
  * </blockquote>
+ *
+ * <p>
+ * If the machine has more than one core (see <tt>Machine.numCores()</tt>), each
+ * core has its own current thread, idle thread and ready queue. A thread is
+ * made ready on the queue of the core it last ran on, or that forked it, and a
+ * core with nothing of its own to run takes the next thread from another
+ * core's queue. A core that is idle when a thread is made ready on its queue
+ * is sent an interprocessor interrupt, so that it looks at its queue at once.
  */
 public class KThread {
     /**
-     * Get the current thread.
+     * Get the current thread, the one running on the current core.
      *
      * @return the current thread.
      */
@@ -56,16 +64,27 @@ public class KThread {
     public KThread() {
         if (currentThread != null) {
             tcb = new TCB();
+            core = currentCore;
         } else {
-            readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
-            readyQueue.acquire(this);
+            numCores = Machine.numCores();
+
+            readyQueues = new ThreadQueue[numCores];
+            for (int core = 0; core < numCores; core++) {
+                readyQueues[core] = ThreadedKernel.scheduler.newThreadQueue(false);
+                readyQueues[core].acquire(this);
+            }
+
+            ticklessIdle = Config.getBoolean("KThread.ticklessIdle", false);
 
             currentThread = this;
             tcb = TCB.currentTCB();
             name = "main";
             restoreState();
 
-            createIdleThread();
+            createIdleThreads();
+
+            if (numCores > 1)
+                startCores();
         }
     }
 
@@ -122,6 +141,21 @@ public class KThread {
         return (name + " (#" + id + ")");
     }
 
+    /**
+     * Get the number of ticks this thread has spent running, including its
+     * current run if it is the current thread. Interrupts must be disabled.
+     *
+     * @return the simulated time this thread has used.
+     */
+    public long getRunTime() {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        if (this == currentThread)
+            return runTime + (Machine.timer().getTime() - runStart);
+        else
+            return runTime;
+    }
+
     /**
      * Deterministically and consistently compare this thread to another thread.
      */
@@ -288,8 +322,13 @@ public class KThread {
         //     System.out.println(KThread.currentThread() + " at ready " + Machine.timer().getTime());    
         // }
         status = statusReady;
-        if (this != idleThread)
-            readyQueue.waitForAccess(this);
+        if (this != idleThreads[core]) {
+            readyQueues[core].waitForAccess(this);
+
+            // an idle core would not otherwise look until its next tick
+            if (core != currentCore && coreThreads[core] == idleThreads[core])
+                Machine.interrupt().sendIPI(core);
+        }
 
         Machine.autoGrader().readyThread(this);
     }
@@ -334,28 +373,112 @@ public class KThread {
     }
 
     /**
-     * Create the idle thread. Whenever finish()there are no threads ready to be run, and
+     * Create the idle thread of each core. Whenever finish()there are no threads ready to be run, and
      * <tt>runNextThread()</tt> is called, it will run the idle thread. The idle
      * thread must never block, and it will only be allowed to run when all other
      * threads are blocked.
      *
      * <p>
      * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+     *
+     * <p>
+     * If <tt>KThread.ticklessIdle</tt> is set, each time the idle thread yields
+     * with nothing else ready, the simulated time skips ahead to the next
+     * interrupt instead of advancing one kernel tick per yield.
      */
-    private static void createIdleThread() {
-        Lib.assertTrue(idleThread == null);
+    private static void createIdleThreads() {
+        Lib.assertTrue(idleThreads == null);
+
+        idleThreads = new KThread[numCores];
+
+        for (int core = 0; core < numCores; core++) {
+            KThread idleThread = new KThread(new Runnable() {
+                public void run() {
+                    while (true)
+                        yield();
+                }
+            });
+            idleThread.setName(core == 0 ? "idle" : "idle " + core);
+            idleThread.core = core;
+            idleThreads[core] = idleThread;
+
+            if (core == 0)
+                Machine.autoGrader().setIdleThread(idleThread);
+
+            idleThread.fork();
+        }
+    }
 
-        idleThread = new KThread(new Runnable() {
+    /**
+     * Start the other cores, each running its idle thread, and install the
+     * handlers through which the interrupt controller moves between them.
+     */
+    private static void startCores() {
+        coreThreads = new KThread[numCores];
+        for (int core = 0; core < numCores; core++)
+            coreThreads[core] = idleThreads[core];
+        coreThreads[currentCore] = currentThread;
+
+        Machine.interrupt().setIPIHandler(new Runnable() {
             public void run() {
-                while (true)
-                    yield();
+                if (currentThread == idleThreads[currentCore])
+                    KThread.yield();
             }
         });
-        idleThread.setName("idle");
 
-        Machine.autoGrader().setIdleThread(idleThread);
+        Machine.interrupt().setSwitchHandler(new Runnable() {
+            public void run() {
+                switchCore();
+            }
+        });
+    }
+
+    /**
+     * Switch to the thread that the new current core was running, and return
+     * when the current thread's core runs again. Unlike <tt>run()</tt>, this
+     * does not change the state of either thread; both are still running, just
+     * on different cores.
+     */
+    private static void switchCore() {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        KThread previous = currentThread;
+        coreThreads[currentCore] = previous;
+
+        currentCore = Machine.currentCore();
+        currentThread = coreThreads[currentCore];
 
-        idleThread.fork();
+        Lib.debug(dbgThread, "Switching cores from: " + previous.toString() + " to: " + currentThread.toString());
+
+        currentThread.tcb.contextSwitch();
+
+        // back on the previous thread's core
+        Lib.assertTrue(currentThread == previous);
+        Machine.autoGrader().runningThread(previous);
+    }
+
+    /**
+     * Replace the ready queue with a new one from
+     * <tt>ThreadedKernel.scheduler</tt>, so that another scheduler can be tried
+     * without restarting Nachos. The ready queue must be empty, and no other
+     * thread should be waiting on a queue from the old scheduler. Interrupts must
+     * be disabled.
+     */
+    static void resetReadyQueue() {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        for (int core = 0; core < numCores; core++) {
+            Lib.assertTrue(readyQueues[core].nextThread() == null);
+
+            KThread running = (core == currentCore) ? currentThread : coreThreads[core];
+            running.schedulingState = null;
+
+            // an idle thread may have been looked at while it was running
+            idleThreads[core].schedulingState = null;
+
+            readyQueues[core] = ThreadedKernel.scheduler.newThreadQueue(false);
+            readyQueues[core].acquire(running);
+        }
     }
 
     /**
@@ -363,10 +486,21 @@ public class KThread {
      * <tt>run()</tt>.
      */
     private static void runNextThread() {
-        KThread nextThread = readyQueue.nextThread();
-        if (nextThread == null)
+        KThread nextThread = readyQueues[currentCore].nextThread();
+
+        // take work from the other cores before going idle
+        for (int i = 1; nextThread == null && i < numCores; i++)
+            nextThread = readyQueues[(currentCore + i) % numCores].nextThread();
+
+        if (nextThread == null) {
+            KThread idleThread = idleThreads[currentCore];
             nextThread = idleThread;
 
+            // nothing can become ready before the next interrupt
+            if (ticklessIdle && currentThread == idleThread)
+                Machine.interrupt().idle();
+        }
+
         nextThread.run();
     }
 
@@ -418,6 +552,8 @@ public class KThread {
         Machine.autoGrader().runningThread(this);
 
         status = statusRunning;
+        core = currentCore;
+        runStart = Machine.timer().getTime();
 
         if (toBeDestroyed != null) {
             toBeDestroyed.tcb.destroy();
@@ -433,6 +569,8 @@ public class KThread {
     protected void saveState() {
         Lib.assertTrue(Machine.interrupt().disabled());
         Lib.assertTrue(this == currentThread);
+
+        runTime += Machine.timer().getTime() - runStart;
     }
 
     private static class PingTest implements Runnable {
@@ -493,6 +631,8 @@ public class KThread {
      * queue and not running).
      */
     private int status = statusNew;
+    /** The ticks spent running before the current run, and when it started. */
+    private long runTime = 0, runStart = 0;
     private String name = "(unnamed thread)";
     private Runnable target;
     private TCB tcb;
@@ -504,10 +644,19 @@ public class KThread {
     /** Number of times the KThread constructor was called. */
     private static int numCreated = 0;
 
-    private static ThreadQueue readyQueue = null;
+    /** The core this thread last ran on or was created on, whose ready queue it goes on. */
+    private int core = 0;
+
+    private static int numCores = 1;
+    /** The core running <tt>currentThread</tt>. */
+    private static int currentCore = 0;
+    private static ThreadQueue[] readyQueues = null;
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
-    private static KThread idleThread = null;
+    private static KThread[] idleThreads = null;
+    /** The thread each core was running when it was last switched away from. */
+    private static KThread[] coreThreads = null;
+    private static boolean ticklessIdle = false;
 
     private ThreadQueue callingThreadQueue = null;
     private KThread callingThread = null;
@@ -2,10 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads using a lottery.
  *
@@ -25,6 +21,14 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking
  * the maximum).
+ *
+ * <p>
+ * Each queue keeps the effective tickets of its waiting threads in a binary
+ * indexed (Fenwick) tree, one slot per thread. Adding or removing a thread,
+ * changing its tickets, and finding the holder of the winning ticket all take
+ * time logarithmic in the number of waiting threads. A thread's effective
+ * tickets are cached, and a change is added to every queue and owner along
+ * the chain of queues it is waiting in.
  */
 public class LotteryScheduler extends PriorityScheduler {
     /**
@@ -42,7 +46,404 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getLotteryState(thread).tickets;
+    }
+
+    /**
+     * Return the effective tickets of the specified thread, or
+     * <tt>Integer.MAX_VALUE</tt> if there are more than that.
+     */
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return (int) Math.min(getLotteryState(thread).effectiveTickets, Integer.MAX_VALUE);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum && priority <= priorityMaximum);
+
+	getLotteryState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority + 1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority - 1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * Test that tickets donated around a cycle of threads, deadlocked on each
+     * other's locks, are added once rather than forever. The threads are
+     * never forked; their queues are driven directly.
+     */
+    public static void selfTest() {
+	LotteryScheduler scheduler = new LotteryScheduler();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread a = new KThread().setName("lottery a");
+	KThread b = new KThread().setName("lottery b");
+	KThread c = new KThread().setName("lottery c");
+	KThread d = new KThread().setName("lottery d");
+
+	ThreadQueue lock1 = scheduler.newThreadQueue(true);
+	ThreadQueue lock2 = scheduler.newThreadQueue(true);
+	ThreadQueue lock3 = scheduler.newThreadQueue(true);
+
+	// a holds lock1 and waits for lock2, b holds lock2 and waits for lock1
+	lock1.acquire(a);
+	lock2.acquire(b);
+	lock2.waitForAccess(a);
+	lock1.waitForAccess(b);
+
+	Lib.assertTrue(scheduler.getEffectivePriority(a) == 3);
+	Lib.assertTrue(scheduler.getEffectivePriority(b) == 4);
+
+	// c holds lock3 and waits for lock1, so a walk from c runs into the
+	// cycle without coming back to where it started
+	lock3.acquire(c);
+	lock1.waitForAccess(c);
+	lock3.waitForAccess(d);
+
+	Lib.assertTrue(scheduler.getEffectivePriority(c) == 2);
+	Lib.assertTrue(scheduler.getEffectivePriority(a) == 5);
+	Lib.assertTrue(scheduler.getEffectivePriority(b) == 6);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /** The number of walks <tt>LotteryState.addEffectiveTickets()</tt> has made. */
+    private long numWalks = 0;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected LotteryState getLotteryState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new LotteryState(thread);
+
+	return (LotteryState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+     */
+    protected class LotteryQueue extends ThreadQueue {
+	LotteryQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getLotteryState(thread).waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getLotteryState(thread).acquire(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (numWaiting == 0)
+		return null;
+
+	    // a winning ticket in [0, totalTickets)
+	    long ticket = Math.min((long) (Lib.random() * totalTickets), totalTickets - 1);
+	    LotteryState state = slots[findSlot(ticket)];
+
+	    remove(state);
+	    state.acquire(this);
+
+	    return state.thread;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int slot = 1; slot <= capacity; slot++) {
+		if (slots[slot] != null)
+		    System.out.print(slots[slot].thread + " (" + slots[slot].effectiveTickets + ") ");
+	    }
+	    System.out.println();
+	}
+
+	/**
+	 * Give a thread a slot in this queue, and add its tickets to the total.
+	 */
+	void add(LotteryState state) {
+	    if (freeSlots == 0)
+		grow();
+
+	    int slot = freeSlot[--freeSlots];
+	    slots[slot] = state;
+	    state.slot = slot;
+	    numWaiting++;
+
+	    addTickets(slot, state.effectiveTickets);
+	}
+
+	/**
+	 * Remove a thread from this queue, and take its tickets from the total
+	 * and from the owner.
+	 */
+	void remove(LotteryState state) {
+	    Lib.assertTrue(state.waitQueue == this);
+
+	    addTickets(state.slot, -state.effectiveTickets);
+
+	    slots[state.slot] = null;
+	    freeSlot[freeSlots++] = state.slot;
+	    numWaiting--;
+
+	    state.waitQueue = null;
+
+	    if (transferPriority && owner != null)
+		owner.addEffectiveTickets(-state.effectiveTickets);
+	}
+
+	/**
+	 * Add to the tickets held in one slot of the tree. Does not update the
+	 * owner.
+	 */
+	void addTickets(int slot, long delta) {
+	    totalTickets += delta;
+
+	    for (int i = slot; i <= capacity; i += i & -i)
+		tree[i] += delta;
+	}
+
+	/**
+	 * Find the slot holding the specified ticket, numbering the tickets from 0
+	 * in slot order.
+	 */
+	private int findSlot(long ticket) {
+	    int position = 0;
+
+	    for (int step = capacity; step > 0; step >>= 1) {
+		if (position + step <= capacity && tree[position + step] <= ticket) {
+		    position += step;
+		    ticket -= tree[position];
+		}
+	    }
+
+	    return position + 1;
+	}
+
+	/**
+	 * Double the number of slots, and rebuild the tree in linear time.
+	 */
+	private void grow() {
+	    int newCapacity = (capacity == 0) ? 4 : capacity * 2;
+
+	    LotteryState[] newSlots = new LotteryState[newCapacity + 1];
+	    System.arraycopy(slots, 0, newSlots, 0, capacity + 1);
+
+	    long[] newTree = new long[newCapacity + 1];
+	    for (int i = 1; i <= newCapacity; i++) {
+		if (newSlots[i] != null)
+		    newTree[i] += newSlots[i].effectiveTickets;
+
+		int parent = i + (i & -i);
+		if (parent <= newCapacity)
+		    newTree[parent] += newTree[i];
+	    }
+
+	    int[] newFreeSlot = new int[newCapacity];
+	    // hand out the lowest new slot first
+	    for (int slot = newCapacity; slot > capacity; slot--)
+		newFreeSlot[freeSlots++] = slot;
+
+	    capacity = newCapacity;
+	    slots = newSlots;
+	    tree = newTree;
+	    freeSlot = newFreeSlot;
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	/** The thread that last acquired this queue, if it transfers tickets. */
+	private LotteryState owner = null;
+
+	/** The number of slots, always a power of two (or 0). */
+	private int capacity = 0;
+	/** The thread in each slot, indexed from 1. */
+	private LotteryState[] slots = new LotteryState[1];
+	/** The Fenwick tree over the effective tickets in each slot. */
+	private long[] tree = new long[1];
+	/** A stack of the slots that are not in use. */
+	private int[] freeSlot = new int[0];
+	private int freeSlots = 0;
+
+	private int numWaiting = 0;
+	private long totalTickets = 0;
+    }
+
+    /**
+     * The scheduling state of a thread under a lottery scheduler: its tickets,
+     * its effective tickets including those transferred to it, and the queue it
+     * is waiting in.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class LotteryState {
+	/**
+	 * Allocate a new <tt>LotteryState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public LotteryState(KThread thread) {
+	    this.thread = thread;
+
+	    setTickets(priorityDefault);
+	}
+
+	/**
+	 * Set the tickets of the associated thread, and pass the difference on
+	 * to its effective tickets.
+	 *
+	 * @param	tickets	the new number of tickets.
+	 */
+	public void setTickets(int tickets) {
+	    long delta = (long) tickets - this.tickets;
+	    this.tickets = tickets;
+
+	    addEffectiveTickets(delta);
+	}
+
+	/**
+	 * Called when the associated thread starts waiting in the specified
+	 * queue. Its effective tickets are added to the queue, and to the
+	 * queue's owner.
+	 *
+	 * @param	waitQueue	the queue that the associated thread is now
+	 *				waiting on.
+	 */
+	public void waitForAccess(LotteryQueue waitQueue) {
+	    Lib.assertTrue(this.waitQueue == null);
+
+	    this.waitQueue = waitQueue;
+	    waitQueue.add(this);
+
+	    if (waitQueue.transferPriority && waitQueue.owner != null)
+		waitQueue.owner.addEffectiveTickets(effectiveTickets);
+	}
+
+	/**
+	 * Called when the associated thread has acquired access to whatever is
+	 * guarded by <tt>waitQueue</tt>. The tickets of the threads waiting in
+	 * it move from the previous owner to this thread.
+	 *
+	 * @param	waitQueue	the queue acquired.
+	 */
+	public void acquire(LotteryQueue waitQueue) {
+	    if (!waitQueue.transferPriority)
+		return;
+
+	    if (waitQueue.owner != null)
+		waitQueue.owner.addEffectiveTickets(-waitQueue.totalTickets);
+
+	    waitQueue.owner = this;
+	    addEffectiveTickets(waitQueue.totalTickets);
+	}
+
+	/**
+	 * Add to the effective tickets of this thread, and of every queue and
+	 * owner along the chain of queues it is waiting in.
+	 *
+	 * @param	delta	the change in effective tickets.
+	 */
+	void addEffectiveTickets(long delta) {
+	    // threads deadlocked on each other's queues make the chain a cycle,
+	    // and an added delta never dies out, so stop at the first thread
+	    // this walk has already passed
+	    long walk = ++numWalks;
+	    LotteryState state = this;
+
+	    while (state != null && delta != 0 && state.lastWalk != walk) {
+		state.lastWalk = walk;
+		state.effectiveTickets += delta;
+
+		LotteryQueue queue = state.waitQueue;
+		if (queue == null)
+		    return;
+
+		queue.addTickets(state.slot, delta);
+
+		state = queue.transferPriority ? queue.owner : null;
+	    }
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The tickets of the associated thread. */
+	protected int tickets = 0;
+	/** Its tickets, plus those of threads waiting for what it holds. */
+	protected long effectiveTickets = 0;
+
+	/** The queue this thread is waiting in, or <tt>null</tt> if none. */
+	private LotteryQueue waitQueue = null;
+	/** The slot it has in that queue. */
+	private int slot;
+	/** The last walk of <tt>addEffectiveTickets()</tt> that passed it. */
+	private long lastWalk = 0;
     }
 }
@@ -0,0 +1,313 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.StringTokenizer;
+
+/**
+ * A multi-level feedback queue scheduler. Threads are kept at one of several
+ * levels, and the next thread to be dequeued is the one that has been waiting
+ * longest at the highest non-empty level (level 0). New threads start at
+ * level 0.
+ *
+ * <p>
+ * Each level has a quantum, in units of <tt>Stats.TimerTicks</tt>. A thread is
+ * charged for the ticks it has run on every timer interrupt, and when it
+ * yields or blocks; charging the ticks actually used, rather than a whole
+ * timer interrupt, keeps a thread that runs in short bursts from being charged
+ * for time other threads used. A thread that has used up the quantum of its
+ * level is moved down a level, behind the threads already waiting there.
+ * A preempted thread with quantum left goes back to the front of its level, so
+ * it keeps the processor unless a thread at a higher level is ready. A thread
+ * that blocks, for example on console or file system I/O, has its usage reset
+ * when it is woken, so threads that spend most of their time waiting stay at
+ * the level they are at. If it is woken at a higher level than the current
+ * thread, <tt>preemptPending()</tt> tells the interrupt handler that woke it to
+ * yield, rather than leaving it to wait for the next timer interrupt. Every so
+ * often all threads are boosted back to level 0, so CPU-bound threads are not
+ * starved.
+ *
+ * <p>
+ * To use this scheduler, set <tt>ThreadedKernel.scheduler</tt> to
+ * <tt>nachos.threads.MLFQScheduler</tt>. It reads these keys:
+ * <ul>
+ * <li><tt>MLFQScheduler.levels</tt>: the number of levels (default 3).
+ * <li><tt>MLFQScheduler.quanta</tt>: the quantum of each level, in
+ * <tt>Stats.TimerTicks</tt>, separated by spaces. Missing entries double the one before;
+ * the default is 1, 2, 4, ...
+ * <li><tt>MLFQScheduler.boostInterval</tt>: the number of timer interrupts
+ * between boosts (default 50).
+ * </ul>
+ */
+public class MLFQScheduler extends Scheduler {
+	/**
+	 * Allocate a new multi-level feedback queue scheduler.
+	 */
+	public MLFQScheduler() {
+		numLevels = Config.getInteger("MLFQScheduler.levels", 3);
+		Lib.assertTrue(numLevels > 0 && numLevels <= 32);
+
+		quanta = new int[numLevels];
+		StringTokenizer st = new StringTokenizer(Config.getString("MLFQScheduler.quanta", "1"));
+		for (int level = 0; level < numLevels; level++) {
+			if (st.hasMoreTokens())
+				quanta[level] = Integer.parseInt(st.nextToken());
+			else
+				quanta[level] = (level == 0) ? 1 : quanta[level - 1] * 2;
+
+			Lib.assertTrue(quanta[level] > 0);
+		}
+
+		boostInterval = Config.getInteger("MLFQScheduler.boostInterval", 50);
+		Lib.assertTrue(boostInterval > 0);
+	}
+
+	/**
+	 * Allocate a new multi-level feedback queue.
+	 *
+	 * @param transferPriority ignored. Levels are not donated.
+	 * @return a new multi-level feedback queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new MLFQueue();
+	}
+
+	/**
+	 * Return the level of the specified thread, counting down from
+	 * <tt>levels - 1</tt> at the top, so that a higher value is more urgent.
+	 */
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return numLevels - 1 - getThreadState(thread).getLevel();
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	/**
+	 * Charge the current thread for the ticks it has run, and boost every thread
+	 * if it is time to.
+	 */
+	public void timerInterrupt() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		// the alarm is about to yield anyway
+		preemptPending = false;
+
+		if (++interruptsSinceBoost >= boostInterval) {
+			interruptsSinceBoost = 0;
+			boostEpoch++;
+		}
+
+		ThreadState state = getThreadState(KThread.currentThread());
+		if (!charge(state))
+			state.preempted = true;
+	}
+
+	/**
+	 * Test whether a thread at a higher level than the current thread has been
+	 * woken up since the last timer interrupt or call. If so, the current thread
+	 * is about to be preempted, and goes back to the front of its level.
+	 */
+	public boolean preemptPending() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (!preemptPending)
+			return false;
+
+		preemptPending = false;
+		getThreadState(KThread.currentThread()).preempted = true;
+
+		return true;
+	}
+
+	/**
+	 * Charge a running thread for the ticks since it was last charged or
+	 * dispatched, and move it down a level if it has used up its quantum.
+	 *
+	 * @param state the state of the current thread.
+	 * @return <tt>true</tt> if the thread used up its quantum.
+	 */
+	private boolean charge(ThreadState state) {
+		int level = state.getLevel();
+
+		long time = Machine.timer().getTime();
+		state.used += time - state.chargedAt;
+		state.chargedAt = time;
+
+		if (state.used < (long) quanta[level] * Stats.TimerTicks)
+			return false;
+
+		state.used = 0;
+		if (level < numLevels - 1)
+			state.level = level + 1;
+
+		return true;
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState();
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	private class MLFQueue extends ThreadQueue {
+		MLFQueue() {
+			levels = new ArrayList<LinkedList<KThread>>(numLevels);
+			for (int level = 0; level < numLevels; level++)
+				levels.add(new LinkedList<KThread>());
+		}
+
+		/**
+		 * Add a thread to its level: at the front if it was preempted with quantum
+		 * left, otherwise at the back. The current thread is yielding or blocking,
+		 * and is charged first. A thread added by another thread has been woken up,
+		 * and starts a new quantum; if it is at a higher level than the current
+		 * thread, the current thread should be preempted.
+		 *
+		 * @param thread the thread to add.
+		 */
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			boost();
+
+			ThreadState state = getThreadState(thread);
+			if (thread == KThread.currentThread() && charge(state))
+				state.preempted = false;
+
+			int level = state.getLevel();
+
+			if (thread != KThread.currentThread()) {
+				state.used = 0;
+
+				if (level < getThreadState(KThread.currentThread()).getLevel())
+					preemptPending = true;
+			}
+
+			if (state.preempted)
+				levels.get(level).addFirst(thread);
+			else
+				levels.get(level).addLast(thread);
+
+			state.preempted = false;
+			occupied |= (1 << level);
+		}
+
+		/**
+		 * Remove the first thread from the highest non-empty level.
+		 *
+		 * @return the first thread at the highest level, or <tt>null</tt> if the
+		 *         queue is empty.
+		 */
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			boost();
+
+			if (occupied == 0)
+				return null;
+
+			int level = Integer.numberOfTrailingZeros(occupied);
+			KThread thread = levels.get(level).removeFirst();
+			if (levels.get(level).isEmpty())
+				occupied &= ~(1 << level);
+
+			// if this is the ready queue, the thread is about to run
+			getThreadState(thread).chargedAt = Machine.timer().getTime();
+
+			return thread;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int level = 0; level < numLevels; level++) {
+				for (KThread thread : levels.get(level))
+					System.out.print(thread + " (" + level + ") ");
+			}
+			System.out.println();
+		}
+
+		/**
+		 * If there has been a boost since this queue last looked, move every
+		 * waiting thread to level 0, keeping them in order of level. Their states
+		 * catch up with the boost when they are next looked at.
+		 */
+		private void boost() {
+			if (epoch == boostEpoch)
+				return;
+
+			epoch = boostEpoch;
+
+			for (int level = 1; level < numLevels; level++) {
+				while (!levels.get(level).isEmpty())
+					levels.get(0).addLast(levels.get(level).removeFirst());
+			}
+
+			if (occupied != 0)
+				occupied = 1;
+		}
+
+		private ArrayList<LinkedList<KThread>> levels;
+		/** Bit <i>l</i> is set if a thread is waiting at level <i>l</i>. */
+		private int occupied = 0;
+		private long epoch = boostEpoch;
+	}
+
+	/**
+	 * The scheduling state of a thread: its level, and the ticks it has been
+	 * charged at that level.
+	 */
+	protected class ThreadState {
+		/**
+		 * Return the level of the thread, first moving it to level 0 if there has
+		 * been a boost since it was last looked at.
+		 *
+		 * @return the level of the thread.
+		 */
+		int getLevel() {
+			if (epoch != boostEpoch) {
+				epoch = boostEpoch;
+				level = 0;
+				used = 0;
+			}
+
+			return level;
+		}
+
+		/** The level of the thread, 0 being the highest. */
+		private int level = 0;
+		/** The ticks it has been charged at this level. */
+		private long used = 0;
+		/** When it was last charged, or dispatched if later. */
+		private long chargedAt = 0;
+		/** Set if it was last preempted by the timer with quantum left. */
+		private boolean preempted = false;
+		private long epoch = boostEpoch;
+	}
+
+	private int numLevels;
+	private int[] quanta;
+	private int boostInterval;
+
+	private int interruptsSinceBoost = 0;
+	private boolean preemptPending = false;
+	/** Incremented at every boost. */
+	private long boostEpoch = 0;
+}
@@ -0,0 +1,104 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * Compares the two ways of accessing little-endian values in a byte array:
+ * <tt>Lib.bytesToInt()</tt>/<tt>Lib.bytesFromInt()</tt>, which work one byte at
+ * a time, and <tt>Lib.loadAligned()</tt>/<tt>Lib.storeAligned()</tt>, which the
+ * processor uses for physical memory.
+ *
+ * <p>
+ * The access pattern is that of <tt>test/matmult.c</tt>: three square int
+ * matrices in memory, with <tt>C += A * B</tt> computed by loading and storing
+ * every element through the access path under test. Run it outside of Nachos:
+ *
+ * <pre>
+ * java nachos.threads.MemoryBenchmark [dim [rounds]]
+ * </pre>
+ */
+public final class MemoryBenchmark {
+    private MemoryBenchmark() {
+    }
+
+    /**
+     * Run the benchmark and print the time per round for each access path.
+     *
+     * @param args the matrix dimension and the number of timed rounds.
+     */
+    public static void main(String[] args) {
+        int dim = (args.length > 0) ? Integer.parseInt(args[0]) : 20;
+        int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+
+        byte[] memory = new byte[3 * dim * dim * 4];
+
+        // warm up both paths so each is compiled before it is timed
+        for (int i = 0; i < rounds; i++) {
+            multiplyBytewise(memory, dim);
+            multiplyAligned(memory, dim);
+        }
+
+        for (int trial = 0; trial < 3; trial++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++)
+                multiplyBytewise(memory, dim);
+            long bytewise = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++)
+                multiplyAligned(memory, dim);
+            long aligned = System.nanoTime() - start;
+
+            System.out.println("bytesToInt/bytesFromInt: " + (bytewise / rounds) + " ns/round, "
+                    + "loadAligned/storeAligned: " + (aligned / rounds) + " ns/round");
+        }
+
+        System.out.println("checksum " + Lib.bytesToInt(memory, memory.length - 4));
+    }
+
+    private static void multiplyBytewise(byte[] memory, int dim) {
+        int a = 0, b = dim * dim * 4, c = 2 * dim * dim * 4;
+
+        for (int i = 0; i < dim; i++) {
+            for (int j = 0; j < dim; j++) {
+                Lib.bytesFromInt(memory, a + (i * dim + j) * 4, 4, i);
+                Lib.bytesFromInt(memory, b + (i * dim + j) * 4, 4, j);
+                Lib.bytesFromInt(memory, c + (i * dim + j) * 4, 4, 0);
+            }
+        }
+
+        for (int i = 0; i < dim; i++) {
+            for (int j = 0; j < dim; j++) {
+                for (int k = 0; k < dim; k++) {
+                    int sum = Lib.bytesToInt(memory, c + (i * dim + j) * 4, 4);
+                    sum += Lib.bytesToInt(memory, a + (i * dim + k) * 4, 4)
+                            * Lib.bytesToInt(memory, b + (k * dim + j) * 4, 4);
+                    Lib.bytesFromInt(memory, c + (i * dim + j) * 4, 4, sum);
+                }
+            }
+        }
+    }
+
+    private static void multiplyAligned(byte[] memory, int dim) {
+        int a = 0, b = dim * dim * 4, c = 2 * dim * dim * 4;
+
+        for (int i = 0; i < dim; i++) {
+            for (int j = 0; j < dim; j++) {
+                Lib.storeAligned(memory, a + (i * dim + j) * 4, 4, i);
+                Lib.storeAligned(memory, b + (i * dim + j) * 4, 4, j);
+                Lib.storeAligned(memory, c + (i * dim + j) * 4, 4, 0);
+            }
+        }
+
+        for (int i = 0; i < dim; i++) {
+            for (int j = 0; j < dim; j++) {
+                for (int k = 0; k < dim; k++) {
+                    int sum = Lib.loadAligned(memory, c + (i * dim + j) * 4, 4);
+                    sum += Lib.loadAligned(memory, a + (i * dim + k) * 4, 4)
+                            * Lib.loadAligned(memory, b + (k * dim + j) * 4, 4);
+                    Lib.storeAligned(memory, c + (i * dim + j) * 4, 4, sum);
+                }
+            }
+        }
+    }
+}
@@ -2,10 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads based on their priorities.
  *
@@ -25,6 +21,19 @@ import java.util.Iterator;
  * <p>
  * A priority scheduler must partially solve the priority inversion problem; in
  * particular, priority must be donated through locks, and through joins.
+ *
+ * <p>
+ * Each queue keeps one list of waiting threads per priority, in the order they
+ * started waiting, and a bitmap of which lists are non-empty. Adding a thread,
+ * and finding or removing the next one, take constant time.
+ *
+ * <p>
+ * Effective priorities are cached. A queue that transfers priority donates
+ * the priority of its first waiting thread to its owner, and each thread counts
+ * the donations it receives at each priority. When a thread's effective
+ * priority changes, the change is passed along the chain of owners of the
+ * queues it is waiting in, stopping at the first thread whose effective
+ * priority stays the same.
  */
 public class PriorityScheduler extends Scheduler {
 	/**
@@ -140,8 +149,21 @@ public class PriorityScheduler extends Scheduler {
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return null;
+
+			ThreadState state = pickNextThread();
+			if (state == null)
+				return null;
+
+			remove(state);
+			state.waitQueue = null;
+
+			ThreadState previousOwner = updateDonation();
+			if (previousOwner != null)
+				previousOwner.updateEffectivePriority();
+
+			state.acquire(this);
+
+			return state.thread;
 		}
 
 		/**
@@ -151,13 +173,99 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
-			return null;
+			if (occupied == 0)
+				return null;
+
+			return heads[31 - Integer.numberOfLeadingZeros(occupied)];
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			for (int priority = priorityMaximum; priority >= priorityMinimum; priority--) {
+				for (ThreadState state = heads[priority]; state != null; state = state.next)
+					System.out.print(state.thread + " (" + priority + ") ");
+			}
+			System.out.println();
+		}
+
+		/**
+		 * Add a thread to the list for its effective priority. Threads normally go
+		 * at the end, but one whose priority has changed goes back to its original
+		 * place in line among threads that started waiting before it.
+		 *
+		 * @param state the thread to add.
+		 */
+		void add(ThreadState state) {
+			int priority = state.getEffectivePriority();
+
+			ThreadState before = tails[priority];
+			while (before != null && before.waitSequence > state.waitSequence)
+				before = before.prev;
+
+			state.prev = before;
+			state.next = (before == null) ? heads[priority] : before.next;
+
+			if (state.next == null)
+				tails[priority] = state;
+			else
+				state.next.prev = state;
+
+			if (before == null)
+				heads[priority] = state;
+			else
+				before.next = state;
+
+			state.queuedPriority = priority;
+			occupied |= (1 << priority);
+		}
+
+		/**
+		 * Remove a thread from the list it is in. The thread is still considered to
+		 * be waiting in this queue, until its <tt>waitQueue</tt> is cleared.
+		 *
+		 * @param state a thread waiting in this queue.
+		 */
+		void remove(ThreadState state) {
+			Lib.assertTrue(state.waitQueue == this);
+
+			int priority = state.queuedPriority;
+
+			if (state.prev == null)
+				heads[priority] = state.next;
+			else
+				state.prev.next = state.next;
+
+			if (state.next == null)
+				tails[priority] = state.prev;
+			else
+				state.next.prev = state.prev;
+
+			if (heads[priority] == null)
+				occupied &= ~(1 << priority);
+
+			state.prev = null;
+			state.next = null;
+		}
+
+		/**
+		 * Bring the priority this queue donates to its owner up to date with the
+		 * threads waiting in it. Does not update the owner's effective priority.
+		 *
+		 * @return the owner, if its donations changed, or <tt>null</tt>.
+		 */
+		ThreadState updateDonation() {
+			if (!transferPriority || owner == null)
+				return null;
+
+			int top = (occupied == 0) ? -1 : 31 - Integer.numberOfLeadingZeros(occupied);
+			if (top == donatedPriority)
+				return null;
+
+			owner.moveDonation(donatedPriority, top);
+			donatedPriority = top;
+
+			return owner;
 		}
 
 		/**
@@ -165,6 +273,17 @@ public class PriorityScheduler extends Scheduler {
 		 * the owning thread.
 		 */
 		public boolean transferPriority;
+
+		/** The first and last waiting thread of each priority. */
+		private ThreadState[] heads = new ThreadState[priorityMaximum + 1];
+		private ThreadState[] tails = new ThreadState[priorityMaximum + 1];
+		/** Bit <i>p</i> is set if a thread of priority <i>p</i> is waiting. */
+		private int occupied = 0;
+
+		/** The thread that last acquired this queue, if it transfers priority. */
+		private ThreadState owner = null;
+		/** The priority donated to <tt>owner</tt>, or -1 if none. */
+		private int donatedPriority = -1;
 	}
 
 	/**
@@ -202,8 +321,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			return priority;
+			return effectivePriority;
 		}
 
 		/**
@@ -217,7 +335,7 @@ public class PriorityScheduler extends Scheduler {
 
 			this.priority = priority;
 
-			// implement me
+			updateEffectivePriority();
 		}
 
 		/**
@@ -232,7 +350,16 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(this.waitQueue == null);
+
+			this.waitQueue = waitQueue;
+			waitSequence = numWaits++;
+
+			waitQueue.add(this);
+
+			ThreadState owner = waitQueue.updateDonation();
+			if (owner != null)
+				owner.updateEffectivePriority();
 		}
 
 		/**
@@ -246,12 +373,86 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
+			if (!waitQueue.transferPriority)
+				return;
+
+			ThreadState previousOwner = waitQueue.owner;
+			if (previousOwner != null) {
+				previousOwner.moveDonation(waitQueue.donatedPriority, -1);
+				waitQueue.donatedPriority = -1;
+				previousOwner.updateEffectivePriority();
+			}
+
+			waitQueue.owner = this;
+			if (waitQueue.updateDonation() != null)
+				updateEffectivePriority();
+		}
+
+		/**
+		 * Move one donation received by this thread from one priority to another.
+		 * Does not update the effective priority.
+		 *
+		 * @param from the old donated priority, or -1 if there was none.
+		 * @param to   the new donated priority, or -1 if there is none.
+		 */
+		void moveDonation(int from, int to) {
+			if (from >= 0 && --donations[from] == 0)
+				donated &= ~(1 << from);
+			if (to >= 0 && donations[to]++ == 0)
+				donated |= (1 << to);
+		}
+
+		/**
+		 * Recompute the effective priority of this thread. If it changed, move the
+		 * thread within the queue it is waiting in, and carry on with the owner of
+		 * that queue, until a thread's effective priority does not change.
+		 */
+		void updateEffectivePriority() {
+			ThreadState state = this;
+
+			while (state != null) {
+				int effective = state.priority;
+				if (state.donated != 0)
+					effective = Math.max(effective, 31 - Integer.numberOfLeadingZeros(state.donated));
+
+				if (effective == state.effectivePriority)
+					return;
+
+				state.effectivePriority = effective;
+
+				PriorityQueue queue = state.waitQueue;
+				if (queue == null)
+					return;
+
+				queue.remove(state);
+				queue.add(state);
+
+				state = queue.updateDonation();
+			}
 		}
 
 		/** The thread with which this object is associated. */
 		protected KThread thread;
 		/** The priority of the associated thread. */
 		protected int priority;
+		/** The priority of the associated thread, including donations. */
+		protected int effectivePriority = priorityMinimum;
+
+		/** The number of queues donating each priority to this thread. */
+		private int[] donations = new int[priorityMaximum + 1];
+		/** Bit <i>p</i> is set if some queue donates priority <i>p</i>. */
+		private int donated = 0;
+
+		/** The queue this thread is waiting in, or <tt>null</tt> if none. */
+		private PriorityQueue waitQueue = null;
+		/** When this thread started waiting, for breaking ties. */
+		private long waitSequence;
+		/** The list of <tt>waitQueue</tt> this thread is in. */
+		private int queuedPriority;
+		/** Neighbours in that list. */
+		private ThreadState prev = null, next = null;
 	}
+
+	/** The number of times any thread has started waiting in a queue. */
+	private long numWaits = 0;
 }
@@ -151,4 +151,25 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
         return false;
     }
+
+    /**
+     * Called by the alarm on every timer interrupt, just before it makes the
+     * current thread yield. Interrupts are disabled. A scheduler that measures
+     * how much processor time threads use can override this; the default does
+     * nothing.
+     */
+    public void timerInterrupt() {
+    }
+
+    /**
+     * Test whether a thread that should run before the current thread has been
+     * woken up since the last call. Interrupt handlers that wake threads call
+     * this, and yield if it returns <tt>true</tt>. Interrupts are disabled. The
+     * default returns <tt>false</tt>, leaving preemption to the timer.
+     *
+     * @return <tt>true</tt> if the current thread should yield.
+     */
+    public boolean preemptPending() {
+        return false;
+    }
 }
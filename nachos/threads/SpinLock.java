@@ -0,0 +1,98 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A spin lock, for mutual exclusion between cores. Unlike a <tt>Lock</tt>, a
+ * thread waiting for a spin lock does not block: it keeps its core busy,
+ * calling <tt>Interrupt.spin()</tt> to let time pass, until the holder on
+ * another core releases it. It is meant for short critical sections, and can
+ * be used with interrupts disabled.
+ *
+ * <p>
+ * On a single core, disabling interrupts is enough to keep other threads out,
+ * and a thread that spins with interrupts disabled waits forever. With more
+ * than one core, the cores are simulated one at a time and only switched when
+ * time advances, so the test and set in <tt>acquire()</tt> is atomic, as the
+ * hardware instruction it stands for would be.
+ */
+public class SpinLock {
+    /**
+     * Allocate a new spin lock. The lock will initially be <i>free</i>.
+     */
+    public SpinLock() {
+    }
+
+    /**
+     * Atomically acquire this lock, spinning until it is free. The current
+     * thread must not already hold it.
+     */
+    public void acquire() {
+        Lib.assertTrue(!isHeldByCurrentThread());
+
+        while (holder != null) {
+            numSpins++;
+            Machine.interrupt().spin();
+        }
+
+        holder = KThread.currentThread();
+        numAcquires++;
+    }
+
+    /**
+     * Try to acquire this lock without spinning.
+     *
+     * @return <tt>true</tt> if the lock was acquired.
+     */
+    public boolean tryAcquire() {
+        Lib.assertTrue(!isHeldByCurrentThread());
+
+        if (holder != null)
+            return false;
+
+        holder = KThread.currentThread();
+        numAcquires++;
+        return true;
+    }
+
+    /**
+     * Release this lock.
+     */
+    public void release() {
+        Lib.assertTrue(isHeldByCurrentThread());
+
+        holder = null;
+    }
+
+    /**
+     * Test if the current thread holds this lock.
+     *
+     * @return true if the current thread holds this lock.
+     */
+    public boolean isHeldByCurrentThread() {
+        return (holder == KThread.currentThread());
+    }
+
+    /**
+     * Return the number of times this lock has been acquired.
+     *
+     * @return the number of acquisitions.
+     */
+    public long getAcquires() {
+        return numAcquires;
+    }
+
+    /**
+     * Return the kernel ticks that threads have spent spinning for this lock,
+     * a measure of how contended it is.
+     *
+     * @return the ticks spent spinning.
+     */
+    public long getSpinTicks() {
+        return numSpins * Stats.KernelTick;
+    }
+
+    private KThread holder = null;
+    private long numAcquires = 0;
+    private long numSpins = 0;
+}
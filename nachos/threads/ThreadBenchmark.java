@@ -0,0 +1,248 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.StringTokenizer;
+
+/**
+ * A kernel that measures the cost of the thread primitives: context switches
+ * by <tt>KThread.yield()</tt>, and handoffs through <tt>Semaphore</tt>,
+ * <tt>Lock</tt>, <tt>Condition2</tt> and <tt>Communicator</tt>. To run it, set
+ * <tt>Kernel.kernel</tt> to <tt>nachos.threads.ThreadBenchmark</tt>.
+ *
+ * <p>
+ * Each benchmark runs once for every scheduler listed in
+ * <tt>ThreadBenchmark.schedulers</tt>, which is used for both the ready queue
+ * and the primitives' wait queues. It performs
+ * <tt>ThreadBenchmark.iterations</tt> operations after a shorter warm-up run,
+ * and prints the simulated ticks and the wall-clock time per operation.
+ * Schedulers that cannot yet pass a thread through a queue are skipped.
+ */
+public class ThreadBenchmark extends ThreadedKernel {
+    /**
+     * Allocate a new benchmark kernel.
+     */
+    public ThreadBenchmark() {
+        super();
+    }
+
+    /**
+     * The benchmarks replace the self tests, which print too much to time.
+     */
+    public void selfTest() {
+    }
+
+    /**
+     * Run every benchmark under every scheduler.
+     */
+    public void run() {
+        int iterations = Config.getInteger("ThreadBenchmark.iterations", 10000);
+        String schedulers = Config.getString("ThreadBenchmark.schedulers",
+                "nachos.threads.RoundRobinScheduler nachos.threads.PriorityScheduler "
+                        + "nachos.threads.LotteryScheduler nachos.threads.MLFQScheduler nachos.threads.FairScheduler");
+
+        Scheduler original = scheduler;
+
+        for (StringTokenizer st = new StringTokenizer(schedulers); st.hasMoreTokens();) {
+            String name = st.nextToken();
+
+            if (!useScheduler(name)) {
+                System.out.println(name + ": not implemented, skipped");
+                continue;
+            }
+
+            for (int i = 0; i < benchmarks.length; i++) {
+                run(i, Math.max(iterations / 10, 1));
+                report(name, benchmarks[i], iterations, run(i, iterations));
+            }
+        }
+
+        scheduler = original;
+        boolean intStatus = Machine.interrupt().disable();
+        KThread.resetReadyQueue();
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Switch to the named scheduler, if it can pass a thread through one of its
+     * queues.
+     */
+    private boolean useScheduler(String name) {
+        Scheduler candidate = (Scheduler) Lib.constructObject(name);
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        // the candidate may look at the current thread too, so hide its state
+        KThread current = KThread.currentThread();
+        Object currentState = current.schedulingState;
+        current.schedulingState = null;
+
+        // a thread that is never forked, just to see if it comes back out
+        KThread probe = new KThread();
+        ThreadQueue queue = candidate.newThreadQueue(false);
+        boolean works = false;
+        if (queue != null) {
+            queue.waitForAccess(probe);
+            works = (queue.nextThread() == probe);
+        }
+
+        current.schedulingState = currentState;
+
+        if (works) {
+            scheduler = candidate;
+            KThread.resetReadyQueue();
+        }
+
+        Machine.interrupt().restore(intStatus);
+
+        return works;
+    }
+
+    private static void report(String scheduler, String benchmark, int iterations, long[] result) {
+        String name = scheduler.substring(scheduler.lastIndexOf('.') + 1);
+
+        System.out.println(name + " " + benchmark + ": " + iterations + " ops, "
+                + ((double) result[0] / iterations) + " ticks/op, " + (result[1] / iterations) + " ns/op");
+    }
+
+    /**
+     * Run one benchmark in newly forked threads, and wait for them to finish.
+     *
+     * @return the simulated ticks and the wall-clock nanoseconds taken.
+     */
+    private long[] run(int benchmark, final int n) {
+        Runnable[] threads;
+
+        switch (benchmark) {
+            case 0:
+                threads = yieldPingPong(n);
+                break;
+            case 1:
+                threads = semaphorePingPong(n);
+                break;
+            case 2:
+                threads = lockContention(n);
+                break;
+            case 3:
+                threads = conditionPingPong(n);
+                break;
+            default:
+                threads = communicator(n);
+                break;
+        }
+
+        KThread[] forked = new KThread[threads.length];
+
+        long ticks = Machine.timer().getTime();
+        long time = System.nanoTime();
+
+        for (int i = 0; i < threads.length; i++) {
+            forked[i] = new KThread(threads[i]).setName(benchmarks[benchmark] + " " + i);
+            forked[i].fork();
+        }
+
+        // join rather than count completions, so no thread is still on its way
+        // to finish() when the next scheduler replaces the ready queue
+        for (int i = 0; i < forked.length; i++)
+            forked[i].join();
+
+        return new long[] { Machine.timer().getTime() - ticks, System.nanoTime() - time };
+    }
+
+    /** Two threads yielding to each other. */
+    private static Runnable[] yieldPingPong(final int n) {
+        Runnable yielder = new Runnable() {
+            public void run() {
+                for (int i = 0; i < n / 2; i++)
+                    KThread.yield();
+            }
+        };
+
+        return new Runnable[] { yielder, yielder };
+    }
+
+    /** Two threads passing control back and forth with a pair of semaphores. */
+    private static Runnable[] semaphorePingPong(final int n) {
+        final Semaphore ping = new Semaphore(0);
+        final Semaphore pong = new Semaphore(0);
+
+        return new Runnable[] { new Runnable() {
+            public void run() {
+                for (int i = 0; i < n; i++) {
+                    ping.V();
+                    pong.P();
+                }
+            }
+        }, new Runnable() {
+            public void run() {
+                for (int i = 0; i < n; i++) {
+                    ping.P();
+                    pong.V();
+                }
+            }
+        } };
+    }
+
+    /** Four threads contending for a lock, each yielding while it holds it. */
+    private static Runnable[] lockContention(final int n) {
+        final Lock lock = new Lock();
+
+        Runnable contender = new Runnable() {
+            public void run() {
+                for (int i = 0; i < n / 4; i++) {
+                    lock.acquire();
+                    KThread.yield();
+                    lock.release();
+                }
+            }
+        };
+
+        return new Runnable[] { contender, contender, contender, contender };
+    }
+
+    /** Two threads taking turns, waiting on a condition variable for their turn. */
+    private static Runnable[] conditionPingPong(final int n) {
+        final Lock lock = new Lock();
+        final Condition2 turnChanged = new Condition2(lock);
+        final int[] turn = new int[1];
+
+        Runnable[] players = new Runnable[2];
+        for (int p = 0; p < players.length; p++) {
+            final int me = p;
+
+            players[p] = new Runnable() {
+                public void run() {
+                    for (int i = 0; i < n / 2; i++) {
+                        lock.acquire();
+                        while (turn[0] != me)
+                            turnChanged.sleep();
+                        turn[0] = 1 - me;
+                        turnChanged.wake();
+                        lock.release();
+                    }
+                }
+            };
+        }
+
+        return players;
+    }
+
+    /** One speaker and one listener exchanging words. */
+    private static Runnable[] communicator(final int n) {
+        final Communicator communicator = new Communicator();
+
+        return new Runnable[] { new Runnable() {
+            public void run() {
+                for (int i = 0; i < n; i++)
+                    communicator.speak(i);
+            }
+        }, new Runnable() {
+            public void run() {
+                for (int i = 0; i < n; i++)
+                    Lib.assertTrue(communicator.listen() == i);
+            }
+        } };
+    }
+
+    private static final String[] benchmarks = { "yield", "semaphore", "lock", "condition", "communicator" };
+}
@@ -55,6 +55,7 @@ public class ThreadedKernel extends Kernel {
         Condition2.selfTest();
         Alarm.selfTest();
         Communicator.selfTest();
+        LotteryScheduler.selfTest();
     }
 
     /**
@@ -69,6 +69,8 @@ public class SynchConsole {
     private void receiveInterrupt() {
 	charAvailable = true;
 	readWait.V();
+	if (ThreadedKernel.scheduler.preemptPending())
+	    KThread.yield();
     }
 
     /**
@@ -94,6 +96,8 @@ public class SynchConsole {
 
     private void sendInterrupt() {
 	writeWait.V();
+	if (ThreadedKernel.scheduler.preemptPending())
+	    KThread.yield();
     }
 
     private boolean charAvailable = false;
@@ -5,6 +5,7 @@ import nachos.threads.*;
 import nachos.userprog.*;
 
 import java.io.EOFException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -132,7 +133,7 @@ public class UserProcess {
     public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
         Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
         // Retrieve memory from processor
-        byte[] memory = Machine.processor().getMemory();
+        ByteBuffer memory = Machine.processor().getMemoryBuffer();
 
         // First virtual page number calculated from virtual address
         int firstVPN = Processor.pageFromAddress(vaddr);
@@ -151,8 +152,8 @@ public class UserProcess {
         //      and the number of bytes in the page
         int amount = Math.min(length, pageSize - firstOffset);
         // copy bytes from memory to data, started from first offset
-        System.arraycopy(memory, Processor.makeAddress(page.ppn, firstOffset), 
-                        data, offset, amount);
+        memory.position(Processor.makeAddress(page.ppn, firstOffset));
+        memory.get(data, offset, amount);
         
         // Forward the offset
         offset += amount;
@@ -168,8 +169,8 @@ public class UserProcess {
             //      the minimum of bytes yet to transfer and page size
             int len = Math.min(length - amount, pageSize);
             // copy bytes from memory to data, started from 0
-            System.arraycopy(memory, Processor.makeAddress(page.ppn, 0), 
-                        data, offset, len);
+            memory.position(Processor.makeAddress(page.ppn, 0));
+            memory.get(data, offset, len);
 
             // Update amount of byte transferred
             amount += len;
@@ -208,7 +209,7 @@ public class UserProcess {
     public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
         Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
         // Retrieve memory from processor
-        byte[] memory = Machine.processor().getMemory();
+        ByteBuffer memory = Machine.processor().getMemoryBuffer();
 
         // First virtual page number calculated from virtual address
         int firstVPN = Processor.pageFromAddress(vaddr);
@@ -227,8 +228,10 @@ public class UserProcess {
         //      and the number of bytes in the page
         int amount = Math.min(length, pageSize - firstOffset);
         // copy bytes from data to memory, started from first offset
-        System.arraycopy(data, offset, memory, 
-                        Processor.makeAddress(page.ppn, firstOffset), amount);
+        memory.position(Processor.makeAddress(page.ppn, firstOffset));
+        memory.put(data, offset, amount);
+        // instructions decoded from this page may be stale now
+        Machine.processor().invalidatePage(page.ppn);
 
         // Forward the offset
         offset += amount;
@@ -244,8 +247,9 @@ public class UserProcess {
             //      the minimum of bytes yet to transfer and page size
             int len = Math.min(length - amount, pageSize);
             // copy bytes from data to memory, started from 0
-            System.arraycopy(data, offset, memory, 
-                            Processor.makeAddress(page.ppn, 0), len);
+            memory.position(Processor.makeAddress(page.ppn, 0));
+            memory.put(data, offset, len);
+            Machine.processor().invalidatePage(page.ppn);
             
             // Update amount of byte transferred
             amount += len;
@@ -455,9 +459,10 @@ public class UserProcess {
      */
     private int handleHalt() {
 
-        Machine.halt();
+        // let the kernel clean up (the VM kernel removes its swap file)
+        Kernel.kernel.terminate();
 
-        Lib.assertNotReached("Machine.halt() did not halt machine!");
+        Lib.assertNotReached("Kernel.terminate() did not halt machine!");
         return 0;
     }
 
@@ -708,6 +713,9 @@ public class UserProcess {
                 int result = handleSyscall(processor.readRegister(Processor.regV0),
                         processor.readRegister(Processor.regA0), processor.readRegister(Processor.regA1),
                         processor.readRegister(Processor.regA2), processor.readRegister(Processor.regA3));
+
+                // a syscall that blocked may resume on another core
+                processor = Machine.processor();
                 processor.writeRegister(Processor.regV0, result);
                 processor.advancePC();
                 break;
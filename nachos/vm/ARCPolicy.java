@@ -0,0 +1,181 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * The adaptive replacement cache of Megiddo and Modha. Resident pages are kept
+ * on two LRU lists: <i>T1</i> holds pages that have been referenced once since
+ * they were brought in, and <i>T2</i> pages that have been referenced again.
+ * Two ghost lists, <i>B1</i> and <i>B2</i>, remember the pages most recently
+ * evicted from each. A miss on a page in <i>B1</i> means <i>T1</i> was too
+ * small, and moves the target size <i>p</i> of <i>T1</i> up; a miss on a page
+ * in <i>B2</i> moves it down. The victim is the LRU page of <i>T1</i> if
+ * <i>T1</i> is larger than <i>p</i>, and otherwise the LRU page of <i>T2</i>,
+ * so the policy settles between LRU and LFU to suit the workload. The four
+ * lists together remember at most twice as many pages as there are frames.
+ *
+ * <p>
+ * A page is counted as referenced again when a TLB miss is refilled from it,
+ * or when its used bit is found set at a victim selection. Neither counts
+ * until the page has lived through one victim selection, since the references
+ * that brought it in usually cause a burst of them.
+ *
+ * <p>
+ * To use this policy, set <tt>VMKernel.replacementPolicy</tt> to
+ * <tt>nachos.vm.ARCPolicy</tt>.
+ */
+public class ARCPolicy implements PageReplacementPolicy {
+    public ARCPolicy() {
+        numFrames = Machine.processor().getNumPhysPages();
+        frameKeys = new long[numFrames];
+        fresh = new boolean[numFrames];
+    }
+
+    public void pageIn(int ppn, int pid, int vpn) {
+        long key = makeKey(pid, vpn);
+
+        if (!adapted || adaptedKey != key)
+            adapt(key);
+        adapted = false;
+
+        frameKeys[ppn] = key;
+        fresh[ppn] = true;
+
+        if (b1.remove(key) || b2.remove(key)) {
+            t2.put(key, ppn);
+            return;
+        }
+
+        // make room in the directory for a new page
+        while (t1.size() + b1.size() >= numFrames && !b1.isEmpty())
+            removeFirst(b1);
+        while (t1.size() + t2.size() + b1.size() + b2.size() >= 2 * numFrames && !b2.isEmpty())
+            removeFirst(b2);
+
+        t1.put(key, ppn);
+    }
+
+    public void accessed(int ppn) {
+        if (!fresh[ppn])
+            hit(ppn);
+    }
+
+    public void release(int ppn) {
+        long key = frameKeys[ppn];
+        if (t1.remove(key) == null)
+            t2.remove(key);
+    }
+
+    public int selectVictim(int pid, int vpn) {
+        long key = makeKey(pid, vpn);
+
+        // collect the references the kernel did not see
+        for (Integer ppn : residentFrames()) {
+            if (fresh[ppn]) {
+                fresh[ppn] = false;
+                MMU.pageTable.clearUsed(ppn);
+            } else if (MMU.pageTable.isUsed(ppn)) {
+                hit(ppn);
+                MMU.pageTable.clearUsed(ppn);
+            }
+        }
+
+        boolean inB2 = b2.contains(key);
+        boolean ghost = inB2 || b1.contains(key);
+
+        adapt(key);
+        adapted = true;
+        adaptedKey = key;
+
+        // T1 fills the whole cache: drop its LRU page without remembering it
+        if (!ghost && t1.size() >= numFrames)
+            return removeFirst(t1);
+
+        if (!t1.isEmpty() && (t2.isEmpty() || t1.size() > p || (inB2 && t1.size() == p))) {
+            int ppn = t1.get(t1.keySet().iterator().next());
+            b1.add(frameKeys[ppn]);
+            return removeFirst(t1);
+        } else {
+            int ppn = t2.get(t2.keySet().iterator().next());
+            b2.add(frameKeys[ppn]);
+            return removeFirst(t2);
+        }
+    }
+
+    /**
+     * Move the target size of <i>T1</i> towards whichever list a missing page
+     * was recently evicted from.
+     */
+    private void adapt(long key) {
+        if (b1.contains(key))
+            p = Math.min(p + Math.max(b2.size() / b1.size(), 1), numFrames);
+        else if (b2.contains(key))
+            p = Math.max(p - Math.max(b1.size() / b2.size(), 1), 0);
+    }
+
+    /**
+     * Move the page in a frame to the MRU end of <i>T2</i>.
+     */
+    private void hit(int ppn) {
+        long key = frameKeys[ppn];
+        Integer frame = t1.remove(key);
+        if (frame == null)
+            frame = t2.remove(key);
+
+        if (frame != null)
+            t2.put(key, frame);
+    }
+
+    private Integer[] residentFrames() {
+        Integer[] frames = new Integer[t1.size() + t2.size()];
+        int i = 0;
+        for (Integer ppn : t1.values())
+            frames[i++] = ppn;
+        for (Integer ppn : t2.values())
+            frames[i++] = ppn;
+        return frames;
+    }
+
+    private static int removeFirst(LinkedHashMap<Long, Integer> list) {
+        Iterator<Integer> it = list.values().iterator();
+        int ppn = it.next();
+        it.remove();
+        return ppn;
+    }
+
+    private static void removeFirst(LinkedHashSet<Long> list) {
+        Iterator<Long> it = list.iterator();
+        it.next();
+        it.remove();
+    }
+
+    private static long makeKey(int pid, int vpn) {
+        return ((long) pid << 32) | (vpn & 0xFFFFFFFFL);
+    }
+
+    private int numFrames;
+    /** The target size of <i>T1</i>. */
+    private int p = 0;
+
+    /** Resident pages referenced once, LRU first, mapped to their frames. */
+    private LinkedHashMap<Long, Integer> t1 = new LinkedHashMap<>();
+    /** Resident pages referenced more than once, LRU first, mapped to their frames. */
+    private LinkedHashMap<Long, Integer> t2 = new LinkedHashMap<>();
+    /** Pages recently evicted from <i>T1</i>, LRU first. */
+    private LinkedHashSet<Long> b1 = new LinkedHashSet<>();
+    /** Pages recently evicted from <i>T2</i>, LRU first. */
+    private LinkedHashSet<Long> b2 = new LinkedHashSet<>();
+
+    /** The process and virtual page in each frame. */
+    private long[] frameKeys;
+    /** Whether each frame's page has been brought in since the last victim selection. */
+    private boolean[] fresh;
+
+    /** Whether <tt>selectVictim()</tt> has already adapted <i>p</i> to the page being brought in. */
+    private boolean adapted = false;
+    private long adaptedKey;
+}
@@ -0,0 +1,56 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The clock algorithm. Frames are kept in a circle, and a hand sweeps over
+ * them looking for a victim: a frame whose page has been used since the hand
+ * last passed has its used bit cleared and is skipped, and the first frame
+ * whose page has not been used is evicted.
+ *
+ * <p>
+ * To use this policy, set <tt>VMKernel.replacementPolicy</tt> to
+ * <tt>nachos.vm.ClockPolicy</tt>. It is the default.
+ */
+public class ClockPolicy implements PageReplacementPolicy {
+    public ClockPolicy() {
+        numFrames = Machine.processor().getNumPhysPages();
+        resident = new boolean[numFrames];
+    }
+
+    public void pageIn(int ppn, int pid, int vpn) {
+        resident[ppn] = true;
+    }
+
+    public void accessed(int ppn) {
+        // the used bit already says so
+    }
+
+    public void release(int ppn) {
+        resident[ppn] = false;
+    }
+
+    public int selectVictim(int pid, int vpn) {
+        // every frame is resident, so the hand stops within two turns
+        while (true) {
+            int ppn = hand;
+            hand = (hand + 1) % numFrames;
+
+            if (!resident[ppn])
+                continue;
+
+            if (!MMU.pageTable.isUsed(ppn)) {
+                resident[ppn] = false;
+                return ppn;
+            }
+
+            MMU.pageTable.clearUsed(ppn);
+        }
+    }
+
+    private int numFrames;
+    /** Whether each frame holds a page. */
+    private boolean[] resident;
+    /** The next frame the hand will look at. */
+    private int hand = 0;
+}
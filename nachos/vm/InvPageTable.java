@@ -1,189 +1,209 @@
 package nachos.vm;
 
 import nachos.machine.*;
-import java.util.Hashtable;
 
+/**
+ * An inverted page table, with one entry for each physical page. A frame is
+ * looked up by process id and virtual page number through an open-addressing
+ * hash table keyed on <tt>(pid &lt;&lt; 32) | vpn</tt>, and the rest of each
+ * entry is held in arrays indexed by physical page number, so a lookup does not
+ * allocate anything.
+ */
 public class InvPageTable {
 
-    private Hashtable<InvPageTable.Key, InvPageTable.Entry> pageTable;
-
     public InvPageTable() {
-        pageTable = new Hashtable<>();
+        numFrames = Machine.processor().getNumPhysPages();
+
+        // keep the table at most half full, so probe sequences stay short
+        int size = 2;
+        while (size < numFrames * 2)
+            size *= 2;
+
+        keys = new long[size];
+        frames = new int[size];
+        for (int i = 0; i < size; i++)
+            keys[i] = empty;
+
+        frameKeys = new long[numFrames];
+        frameFlags = new byte[numFrames];
+        for (int ppn = 0; ppn < numFrames; ppn++)
+            frameKeys[ppn] = empty;
     }
 
+    /**
+     * Map the page described by <i>entry</i> to its physical page, replacing
+     * whatever that physical page, or that virtual page, was mapped to before.
+     */
     public void put(int pid, TranslationEntry entry) {
-        pageTable.put(new Key(pid, entry.vpn), new Entry(pid, entry));
+        int ppn = entry.ppn;
+        Lib.assertTrue(ppn >= 0 && ppn < numFrames);
+
+        long key = makeKey(pid, entry.vpn);
+
+        if (frameKeys[ppn] != empty)
+            delete(frameKeys[ppn]);
+        delete(key);
+
+        int i = slot(key);
+        while (keys[i] != empty)
+            i = (i + 1) & (keys.length - 1);
+
+        keys[i] = key;
+        frames[i] = ppn;
+
+        frameKeys[ppn] = key;
+        frameFlags[ppn] = (byte) ((entry.valid ? flagValid : 0) | (entry.readOnly ? flagReadOnly : 0)
+                | (entry.used ? flagUsed : 0) | (entry.dirty ? flagDirty : 0));
     }
 
+    /**
+     * Return a copy of the entry for a virtual page, or <tt>null</tt> if it is
+     * not mapped.
+     */
     public TranslationEntry get(int pid, int vpn) {
-        return pageTable.get(new Key(pid, vpn)).getTranslationEntry();
+        int ppn = find(pid, vpn);
+        if (ppn == -1)
+            return null;
+
+        TranslationEntry entry = new TranslationEntry();
+        copyEntry(ppn, entry);
+        return entry;
     }
 
-    public TranslationEntry remove (int pid, int vpn) {
-        return pageTable.remove(new Key(pid, vpn)).getTranslationEntry();
+    /**
+     * Unmap a virtual page, and return what its entry was, or <tt>null</tt> if
+     * it was not mapped.
+     */
+    public TranslationEntry remove(int pid, int vpn) {
+        TranslationEntry entry = get(pid, vpn);
+        if (entry != null)
+            delete(makeKey(pid, vpn));
+
+        return entry;
     }
 
-    protected class Key {
-        int pid;
-        int vpn;
-
-        @Override
-        public int hashCode() {
-            final int prime = 31;
-            int result = 1;
-            result = prime * result + getEnclosingInstance().hashCode();
-            result = prime * result + pid;
-            result = prime * result + vpn;
-            return result;
-        }
+    /**
+     * Return the physical page a virtual page is mapped to, or -1 if it is not
+     * mapped.
+     */
+    public int find(int pid, int vpn) {
+        long key = makeKey(pid, vpn);
 
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj)
-                return true;
-            if (obj == null)
-                return false;
-            if (getClass() != obj.getClass())
-                return false;
-            Key other = (Key) obj;
-            if (!getEnclosingInstance().equals(other.getEnclosingInstance()))
-                return false;
-            if (pid != other.pid)
-                return false;
-            if (vpn != other.vpn)
-                return false;
-            return true;
+        for (int i = slot(key); keys[i] != empty; i = (i + 1) & (keys.length - 1)) {
+            if (keys[i] == key)
+                return frames[i];
         }
 
-        private InvPageTable getEnclosingInstance() {
-            return InvPageTable.this;
-        }
+        return -1;
+    }
 
-        public Key(int pid, int vpn) {
-            this.pid = pid;
-            this.vpn = vpn;
-        }
+    /**
+     * Copy the entry for a mapped physical page into <i>entry</i>.
+     */
+    public void copyEntry(int ppn, TranslationEntry entry) {
+        Lib.assertTrue(frameKeys[ppn] != empty);
+
+        int flags = frameFlags[ppn];
+
+        entry.vpn = (int) frameKeys[ppn];
+        entry.ppn = ppn;
+        entry.valid = (flags & flagValid) != 0;
+        entry.readOnly = (flags & flagReadOnly) != 0;
+        entry.used = (flags & flagUsed) != 0;
+        entry.dirty = (flags & flagDirty) != 0;
     }
 
-    protected class Entry {
-        /**
-         * Allocate a new translation entry with the specified initial state.
-         *
-         * @param vpn      the virtual page numben.
-         * @param ppn      the physical page number.
-         * @param valid    the valid bit.
-         * @param readOnly the read-only bit.
-         * @param used     the used bit.
-         * @param dirty    the dirty bit.
-         */
-        public Entry(int pid, int vpn, int ppn, boolean valid, boolean readOnly, boolean used, boolean dirty) {
-            this.pid = pid;
-            this.vpn = vpn;
-            this.ppn = ppn;
-            this.valid = valid;
-            this.readOnly = readOnly;
-            this.used = used;
-            this.dirty = dirty;
-        }
+    /**
+     * Record that a mapped physical page has been used, and if <i>dirty</i>,
+     * written. Bits already set stay set.
+     */
+    public void markUsed(int ppn, boolean dirty) {
+        Lib.assertTrue(frameKeys[ppn] != empty);
 
-        /**
-         * Allocate a new translation entry, copying the contents of an existing one.
-         *
-         * @param entry the translation entry to copy.
-         */
-        public Entry(int pid, TranslationEntry entry) {
-            this.pid = pid;
-            vpn = entry.vpn;
-            ppn = entry.ppn;
-            valid = entry.valid;
-            readOnly = entry.readOnly;
-            used = entry.used;
-            dirty = entry.dirty;
-        }
+        frameFlags[ppn] |= flagUsed | (dirty ? flagDirty : 0);
+    }
 
-        public TranslationEntry getTranslationEntry() {
-            return new TranslationEntry(vpn, ppn, valid, readOnly, used, dirty);
-        }
+    /**
+     * Return whether a mapped physical page has been used since its used bit
+     * was last cleared.
+     */
+    public boolean isUsed(int ppn) {
+        return (frameFlags[ppn] & flagUsed) != 0;
+    }
 
-        /** The process id. */
-        public int pid;
-
-        /** The virtual page number. */
-        public int vpn;
-
-        /** The physical page number. */
-        public int ppn;
-
-        /**
-         * If this flag is <tt>false</tt>, this translation entry is ignored.
-         */
-        public boolean valid;
-
-        /**
-         * If this flag is <tt>true</tt>, the user pprogram is not allowed to modify the
-         * contents of this virtual page.
-         */
-        public boolean readOnly;
-
-        /**
-         * This flag is set to <tt>true</tt> every time the page is read or written by a
-         * user program.
-         */
-        public boolean used;
-
-        /**
-         * This flag is set to <tt>true</tt> every time the page is written by a user
-         * program.
-         */
-        public boolean dirty;
-
-        @Override
-        public int hashCode() {
-            final int prime = 31;
-            int result = 1;
-            result = prime * result + getEnclosingInstance().hashCode();
-            result = prime * result + (dirty ? 1231 : 1237);
-            result = prime * result + pid;
-            result = prime * result + ppn;
-            result = prime * result + (readOnly ? 1231 : 1237);
-            result = prime * result + (used ? 1231 : 1237);
-            result = prime * result + (valid ? 1231 : 1237);
-            result = prime * result + vpn;
-            return result;
-        }
+    /**
+     * Return whether a mapped physical page has been written since it was
+     * mapped.
+     */
+    public boolean isDirty(int ppn) {
+        return (frameFlags[ppn] & flagDirty) != 0;
+    }
 
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj)
-                return true;
-            if (obj == null)
-                return false;
-            if (getClass() != obj.getClass())
-                return false;
-            Entry other = (Entry) obj;
-            if (!getEnclosingInstance().equals(other.getEnclosingInstance()))
-                return false;
-            if (dirty != other.dirty)
-                return false;
-            if (pid != other.pid)
-                return false;
-            if (ppn != other.ppn)
-                return false;
-            if (readOnly != other.readOnly)
-                return false;
-            if (used != other.used)
-                return false;
-            if (valid != other.valid)
-                return false;
-            if (vpn != other.vpn)
-                return false;
-            return true;
+    /**
+     * Clear the used bit of a mapped physical page, so that a later
+     * <tt>isUsed()</tt> tells whether it has been used again.
+     */
+    public void clearUsed(int ppn) {
+        frameFlags[ppn] &= ~flagUsed;
+    }
+
+    private static long makeKey(int pid, int vpn) {
+        return ((long) pid << 32) | (vpn & 0xFFFFFFFFL);
+    }
+
+    private int slot(long key) {
+        // Fibonacci hashing spreads consecutive vpns across the table
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & (keys.length - 1);
+    }
+
+    /**
+     * Remove a key from the hash table, if it is there, moving later entries
+     * in its probe sequence back so that none of them is left unreachable.
+     */
+    private void delete(long key) {
+        int mask = keys.length - 1;
+
+        int i = slot(key);
+        while (keys[i] != key) {
+            if (keys[i] == empty)
+                return;
+            i = (i + 1) & mask;
         }
 
-        private InvPageTable getEnclosingInstance() {
-            return InvPageTable.this;
+        frameKeys[frames[i]] = empty;
+        frameFlags[frames[i]] = 0;
+
+        for (int j = (i + 1) & mask; keys[j] != empty; j = (j + 1) & mask) {
+            int home = slot(keys[j]);
+
+            // an entry can move back to i only if i lies between its home and j
+            boolean reachable = (i <= j) ? (home <= i || home > j) : (home <= i && home > j);
+            if (reachable) {
+                keys[i] = keys[j];
+                frames[i] = frames[j];
+                i = j;
+            }
         }
 
-        
+        keys[i] = empty;
     }
-}
\ No newline at end of file
+
+    private static final long empty = -1;
+
+    private static final int flagValid = 0x1;
+    private static final int flagReadOnly = 0x2;
+    private static final int flagUsed = 0x4;
+    private static final int flagDirty = 0x8;
+
+    private int numFrames;
+
+    /** The key in each slot of the hash table, or <tt>empty</tt>. */
+    private long[] keys;
+    /** The physical page the key in each slot maps to. */
+    private int[] frames;
+
+    /** The key each physical page is mapped from, or <tt>empty</tt>. */
+    private long[] frameKeys;
+    /** The valid, read-only, used and dirty bits of each physical page. */
+    private byte[] frameFlags;
+}
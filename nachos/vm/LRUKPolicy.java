@@ -0,0 +1,165 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The LRU-K algorithm of O'Neil, O'Neil and Weikum. The victim is the page
+ * whose K-th most recent reference is furthest in the past; a page with fewer
+ * than K references counts as referenced infinitely long ago, and ties are
+ * broken by the most recent reference, as in LRU. With K = 2, a page that is
+ * touched once, such as one step of a sequential scan, is evicted before a
+ * page that is used over and over.
+ *
+ * <p>
+ * The kernel does not see every reference, only TLB misses and the used bits
+ * of frames. A page is counted as referenced when it is paged in, when a TLB
+ * miss is refilled from it, and, if its used bit is set, at every victim
+ * selection. References within the correlated reference period of the last
+ * one are counted as part of it, so the burst of misses that follows a page
+ * being brought in is not taken for K independent references.
+ *
+ * <p>
+ * The history of an evicted page is retained, up to one page per frame, so a
+ * page that is brought back in soon is not treated as new.
+ *
+ * <p>
+ * To use this policy, set <tt>VMKernel.replacementPolicy</tt> to
+ * <tt>nachos.vm.LRUKPolicy</tt>. It reads these keys:
+ * <ul>
+ * <li><tt>LRUKPolicy.k</tt>: the number of references remembered for each page
+ * (default 2).
+ * <li><tt>LRUKPolicy.correlatedPeriod</tt>: the correlated reference period, in
+ * ticks (default 100).
+ * </ul>
+ */
+public class LRUKPolicy implements PageReplacementPolicy {
+    public LRUKPolicy() {
+        k = Config.getInteger("LRUKPolicy.k", 2);
+        Lib.assertTrue(k > 0);
+        correlatedPeriod = Config.getInteger("LRUKPolicy.correlatedPeriod", 100);
+        Lib.assertTrue(correlatedPeriod >= 0);
+
+        numFrames = Machine.processor().getNumPhysPages();
+        resident = new boolean[numFrames];
+        frameKeys = new long[numFrames];
+        history = new long[numFrames][];
+        last = new long[numFrames];
+
+        retained = new LinkedHashMap<Long, long[]>() {
+            protected boolean removeEldestEntry(Map.Entry<Long, long[]> eldest) {
+                return size() > numFrames;
+            }
+        };
+    }
+
+    public void pageIn(int ppn, int pid, int vpn) {
+        long key = makeKey(pid, vpn);
+
+        resident[ppn] = true;
+        frameKeys[ppn] = key;
+
+        long[] hist = retained.remove(key);
+        history[ppn] = (hist != null) ? hist : new long[k];
+        last[ppn] = (hist != null) ? hist[0] : 0;
+
+        reference(ppn, Machine.timer().getTime());
+    }
+
+    public void accessed(int ppn) {
+        if (resident[ppn])
+            reference(ppn, Machine.timer().getTime());
+    }
+
+    public void release(int ppn) {
+        resident[ppn] = false;
+        history[ppn] = null;
+    }
+
+    public int selectVictim(int pid, int vpn) {
+        long now = Machine.timer().getTime();
+
+        // collect the references the kernel did not see
+        for (int ppn = 0; ppn < numFrames; ppn++) {
+            if (resident[ppn] && MMU.pageTable.isUsed(ppn)) {
+                reference(ppn, now);
+                MMU.pageTable.clearUsed(ppn);
+            }
+        }
+
+        int victim = -1;
+        boolean victimEligible = false;
+        for (int ppn = 0; ppn < numFrames; ppn++) {
+            if (!resident[ppn])
+                continue;
+
+            // a page in the middle of a burst of references is kept if possible
+            boolean eligible = now - last[ppn] > correlatedPeriod;
+
+            if (victim == -1 || (eligible && !victimEligible)
+                    || (eligible == victimEligible && older(ppn, victim))) {
+                victim = ppn;
+                victimEligible = eligible;
+            }
+        }
+
+        Lib.assertTrue(victim != -1);
+
+        resident[victim] = false;
+        retained.put(frameKeys[victim], history[victim]);
+        history[victim] = null;
+
+        return victim;
+    }
+
+    /**
+     * Record a reference to the page in a frame. Times of 0 in a history mean
+     * no reference, so a reference at time 0 is recorded at time 1.
+     */
+    private void reference(int ppn, long now) {
+        long[] hist = history[ppn];
+        now = Math.max(now, 1);
+
+        if (hist[0] != 0 && now - last[ppn] <= correlatedPeriod) {
+            last[ppn] = now;
+            return;
+        }
+
+        System.arraycopy(hist, 0, hist, 1, k - 1);
+        hist[0] = now;
+        last[ppn] = now;
+    }
+
+    /**
+     * Return whether the page in frame <i>a</i> is a better victim than the
+     * page in frame <i>b</i>.
+     */
+    private boolean older(int a, int b) {
+        long ka = history[a][k - 1], kb = history[b][k - 1];
+        if (ka != kb)
+            return ka < kb;
+
+        return last[a] < last[b];
+    }
+
+    private static long makeKey(int pid, int vpn) {
+        return ((long) pid << 32) | (vpn & 0xFFFFFFFFL);
+    }
+
+    private int k;
+    private long correlatedPeriod;
+
+    private int numFrames;
+    /** Whether each frame holds a page. */
+    private boolean[] resident;
+    /** The process and virtual page in each frame. */
+    private long[] frameKeys;
+    /** The times of the last K uncorrelated references to each frame's page, most recent first. */
+    private long[][] history;
+    /** The time of the last reference to each frame's page, correlated or not. */
+    private long[] last;
+    /** The histories of recently evicted pages, oldest first. */
+    private LinkedHashMap<Long, long[]> retained;
+}
@@ -1,25 +1,188 @@
 package nachos.vm;
 
-import java.util.Random;
-
+import nachos.machine.Config;
+import nachos.machine.Lib;
 import nachos.machine.Machine;
+import nachos.machine.Processor;
 import nachos.machine.TranslationEntry;
 
+/**
+ * Refills the TLB from the inverted page table. An entry goes into an invalid
+ * slot of the set that can hold it if there is one, and otherwise replaces the
+ * entry chosen by <tt>MMU.tlbReplacement</tt>:
+ * <ul>
+ * <li><tt>random</tt>: any entry in the set.
+ * <li><tt>fifo</tt>: the entry that was refilled longest ago.
+ * <li><tt>plru</tt>: tree pseudo-LRU. Each set keeps a binary tree of bits
+ * pointing away from the ways used most recently; <tt>tlbWays</tt> must be a
+ * power of two, and at most 32.
+ * <li><tt>nru</tt>: an entry whose used bit is clear, looking from the way
+ * after the last one replaced. If every entry has been used, all their used
+ * bits are cleared first. This is the default.
+ * </ul>
+ * The hardware sets an entry's used bit on every access, which is all the
+ * kernel learns of TLB hits; pseudo-LRU takes each entry found used at a
+ * refill as accessed then, and clears the bit. Used and dirty bits are copied
+ * back to the page table before any are cleared, and before an entry is
+ * replaced.
+ */
 public class MMU {
     public static InvPageTable pageTable = new InvPageTable();
-    private Random rand = new Random();
+    /** Refilled on every TLB miss; the TLB keeps its own copy. */
+    private TranslationEntry refill = new TranslationEntry();
+    /** Holds each TLB entry looked at while refilling, so a miss allocates nothing. */
+    private TranslationEntry scratch = new TranslationEntry();
     public MMU() {
+        String name = Config.getString("MMU.tlbReplacement", "nru");
+        if (name.equals("random"))
+            replacement = replaceRandom;
+        else if (name.equals("fifo"))
+            replacement = replaceFIFO;
+        else if (name.equals("plru"))
+            replacement = replacePLRU;
+        else if (name.equals("nru"))
+            replacement = replaceNRU;
+        else
+            Lib.assertNotReached("unknown MMU.tlbReplacement: " + name);
+
+        Processor processor = Machine.processor();
+        ways = processor.getTLBWays();
+        int sets = processor.getTLBSize() / ways;
 
+        Lib.assertTrue(replacement != replacePLRU || (ways & (ways - 1)) == 0,
+                "pseudo-LRU needs a power-of-two Processor.tlbWays");
+        // the tree of a set has ways - 1 nodes, numbered from 1, in an int
+        Lib.assertTrue(replacement != replacePLRU || ways <= 32,
+                "pseudo-LRU needs Processor.tlbWays of at most 32");
+
+        // each core has its own TLB
+        int cores = Machine.numCores();
+        refilledAt = new long[cores][processor.getTLBSize()];
+        numRefills = new long[cores];
+        plruBits = new int[cores][sets];
+        nruHand = new int[cores][sets];
     }
 
     public TranslationEntry fetchEntryFromTable(int pid, int vpn) {
-        TranslationEntry entry = pageTable.get(pid, vpn);
-        if (entry == null) {
+        int ppn = pageTable.find(pid, vpn);
+        if (ppn == -1) {
             System.out.println("NO ENTRY FOUND IN PAGE-TABLE.");
+            return null;
+        }
+        pageTable.copyEntry(ppn, refill);
+        // the processor sets the used bit on the access that missed
+        refill.used = false;
+        refill.asid = pid;
+
+        int core = Machine.currentCore();
+        int set = Machine.processor().getTLBSet(vpn);
+        int way = chooseWay(core, set);
+        int indx = set * ways + way;
+        // the entry being replaced may have the only record that its page was written
+        Machine.processor().readTLBEntry(indx, scratch);
+        if (scratch.valid)
+            VMKernel.writeBack(scratch);
+        Machine.processor().writeTLBEntry(indx, refill);
+
+        refilledAt[core][indx] = ++numRefills[core];
+        if (replacement == replacePLRU)
+            touch(core, set, way);
+        return refill;
+    }
+
+    /**
+     * Choose the way of a set of this core's TLB to refill.
+     */
+    private int chooseWay(int core, int set) {
+        Processor processor = Machine.processor();
+        int first = set * ways;
+
+        for (int way = 0; way < ways; way++) {
+            processor.readTLBEntry(first + way, scratch);
+            if (!scratch.valid)
+                return way;
+        }
+
+        switch (replacement) {
+            case replaceFIFO: {
+                int oldest = 0;
+                for (int way = 1; way < ways; way++) {
+                    if (refilledAt[core][first + way] < refilledAt[core][first + oldest])
+                        oldest = way;
+                }
+                return oldest;
+            }
+
+            case replacePLRU:
+                for (int way = 0; way < ways; way++) {
+                    if (clearUsed(first + way))
+                        touch(core, set, way);
+                }
+                return plruVictim(core, set);
+
+            case replaceNRU: {
+                for (int i = 0; i < ways; i++) {
+                    int way = (nruHand[core][set] + i) % ways;
+                    processor.readTLBEntry(first + way, scratch);
+                    if (!scratch.used) {
+                        nruHand[core][set] = (way + 1) % ways;
+                        return way;
+                    }
+                }
+
+                // everything has been used: start over
+                for (int way = 0; way < ways; way++)
+                    clearUsed(first + way);
+
+                int way = nruHand[core][set];
+                nruHand[core][set] = (way + 1) % ways;
+                return way;
+            }
+
+            default:
+                return Lib.random(ways);
         }
-        int indx = rand.nextInt(Machine.processor().getTLBSize());
-        Machine.processor().writeTLBEntry(indx, entry);
-        return entry;
+    }
+
+    /**
+     * Clear the used bit of a TLB entry, copying its bits to the page table
+     * first. Return whether it was set.
+     */
+    private boolean clearUsed(int indx) {
+        Machine.processor().readTLBEntry(indx, scratch);
+        if (!scratch.used)
+            return false;
+
+        VMKernel.writeBack(scratch);
+        scratch.used = false;
+        Machine.processor().writeTLBEntry(indx, scratch);
+        return true;
+    }
+
+    /**
+     * Point every node of a set's pseudo-LRU tree on the path to a way away
+     * from it. Node 1 is the root, and node n has children 2n and 2n+1.
+     */
+    private void touch(int core, int set, int way) {
+        int node = 1;
+        for (int bit = ways >> 1; bit > 0; bit >>= 1) {
+            boolean right = (way & bit) != 0;
+            if (right)
+                plruBits[core][set] &= ~(1 << node);
+            else
+                plruBits[core][set] |= 1 << node;
+            node = node * 2 + (right ? 1 : 0);
+        }
+    }
+
+    /**
+     * Follow a set's pseudo-LRU tree to the way it points to.
+     */
+    private int plruVictim(int core, int set) {
+        int node = 1;
+        while (node < ways)
+            node = node * 2 + ((plruBits[core][set] >> node) & 1);
+        return node - ways;
     }
 
     public void addEntry(int pid, TranslationEntry entry) {
@@ -33,4 +196,17 @@ public class MMU {
     public TranslationEntry getTranslationEntry(int pid, int vpn) {
         return pageTable.get(pid, vpn);
     }
+
+    private static final int replaceRandom = 0, replaceFIFO = 1, replacePLRU = 2, replaceNRU = 3;
+    private int replacement;
+
+    private int ways;
+    // all indexed by core first
+    /** The refill count at which each TLB slot was last refilled. */
+    private long[][] refilledAt;
+    private long[] numRefills;
+    /** The pseudo-LRU tree of each set; bit n is node n, set if the victim is to its right. */
+    private int[][] plruBits;
+    /** The way of each set that NRU looks at first. */
+    private int[][] nruHand;
 }
@@ -0,0 +1,43 @@
+package nachos.vm;
+
+/**
+ * Chooses which physical page <tt>VMKernel</tt> evicts when a page must be
+ * brought in and no frame is free. The policy is told when each frame is
+ * filled and freed, and when a TLB miss is refilled from a resident page; it
+ * can read and clear the used and dirty bits of each frame through
+ * <tt>MMU.pageTable</tt>. The used bits of the running process's TLB entries
+ * are copied into the page table, and cleared in the TLB, before every call to
+ * <tt>selectVictim()</tt>.
+ *
+ * <p>
+ * <tt>VMKernel</tt> constructs the class named by
+ * <tt>VMKernel.replacementPolicy</tt> (default
+ * <tt>nachos.vm.ClockPolicy</tt>). All calls are made with
+ * <tt>VMKernel.vmLock</tt> held, except <tt>accessed()</tt>, which is made with
+ * interrupts disabled.
+ */
+public interface PageReplacementPolicy {
+    /**
+     * Called after a virtual page of a process has been brought into a frame.
+     */
+    void pageIn(int ppn, int pid, int vpn);
+
+    /**
+     * Called when a TLB miss is refilled from a page that is already in a
+     * frame.
+     */
+    void accessed(int ppn);
+
+    /**
+     * Called when a frame is freed because the process it belongs to has
+     * exited.
+     */
+    void release(int ppn);
+
+    /**
+     * Choose a frame to evict to make room for a virtual page of a process.
+     * Every frame is in use. The frame returned is evicted, then passed to
+     * <tt>pageIn()</tt> with the new page.
+     */
+    int selectVictim(int pid, int vpn);
+}
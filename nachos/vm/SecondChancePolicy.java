@@ -0,0 +1,77 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The enhanced second-chance algorithm. Like the clock algorithm, but the
+ * dirty bit is considered along with the used bit, so that a page which must
+ * be written to swap is evicted only if no clean page will do. From best to
+ * worst victim, the classes are:
+ * <ol>
+ * <li>not used, clean;
+ * <li>not used, dirty;
+ * <li>used, clean;
+ * <li>used, dirty.
+ * </ol>
+ * The hand first sweeps for a frame of the first class, changing nothing. If
+ * there is none, it sweeps again for the second class, clearing used bits as it
+ * goes, so that if that fails too every page has moved down to the first two
+ * classes and the next pair of sweeps must succeed.
+ *
+ * <p>
+ * To use this policy, set <tt>VMKernel.replacementPolicy</tt> to
+ * <tt>nachos.vm.SecondChancePolicy</tt>.
+ */
+public class SecondChancePolicy implements PageReplacementPolicy {
+    public SecondChancePolicy() {
+        numFrames = Machine.processor().getNumPhysPages();
+        resident = new boolean[numFrames];
+    }
+
+    public void pageIn(int ppn, int pid, int vpn) {
+        resident[ppn] = true;
+    }
+
+    public void accessed(int ppn) {
+        // the used bit already says so
+    }
+
+    public void release(int ppn) {
+        resident[ppn] = false;
+    }
+
+    public int selectVictim(int pid, int vpn) {
+        while (true) {
+            // not used, clean
+            for (int i = 0; i < numFrames; i++) {
+                int ppn = (hand + i) % numFrames;
+                if (resident[ppn] && !MMU.pageTable.isUsed(ppn) && !MMU.pageTable.isDirty(ppn))
+                    return take(ppn);
+            }
+
+            // not used, dirty, giving every used page its second chance
+            for (int i = 0; i < numFrames; i++) {
+                int ppn = (hand + i) % numFrames;
+                if (!resident[ppn])
+                    continue;
+
+                if (!MMU.pageTable.isUsed(ppn))
+                    return take(ppn);
+
+                MMU.pageTable.clearUsed(ppn);
+            }
+        }
+    }
+
+    private int take(int ppn) {
+        resident[ppn] = false;
+        hand = (ppn + 1) % numFrames;
+        return ppn;
+    }
+
+    private int numFrames;
+    /** Whether each frame holds a page. */
+    private boolean[] resident;
+    /** The frame each sweep starts at: the one after the last victim. */
+    private int hand = 0;
+}
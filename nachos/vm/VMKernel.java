@@ -5,6 +5,10 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedList;
+
 /**
  * A kernel that can support multiple demand-paging user processes.
  */
@@ -17,12 +21,32 @@ public class VMKernel extends UserKernel {
     }
 
     /**
-     * Initialize this kernel.
+     * Initialize this kernel. Opens the swap file that evicted pages are written
+     * to.
      */
     public void initialize(String[] args) {
         super.initialize(args);
 
+        vmLock = new Lock();
+        frameOwners = new VMProcess[Machine.processor().getNumPhysPages()];
+
+        String policyName = Config.getString("VMKernel.replacementPolicy", "nachos.vm.ClockPolicy");
+        policy = (PageReplacementPolicy) Lib.constructObject(policyName);
+        Lib.debug(dbgVM, "replacing pages with " + policyName);
 
+        // a name no other machine sharing this directory is using, so that
+        // we do not swap into each other's file (the host pid is off limits
+        // to the kernel)
+        long suffix = System.nanoTime();
+        OpenFile existing;
+        do {
+            swapFileName = "nachos.swap." + Long.toHexString(suffix++);
+            existing = ThreadedKernel.fileSystem.open(swapFileName, false);
+            if (existing != null)
+                existing.close();
+        } while (existing != null);
+        swapFile = ThreadedKernel.fileSystem.open(swapFileName, true);
+        Lib.assertTrue(swapFile != null, "cannot open swap file");
     }
 
     /**
@@ -43,18 +67,261 @@ public class VMKernel extends UserKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+        if (swapFile != null) {
+            swapFile.close();
+            ThreadedKernel.fileSystem.remove(swapFileName);
+        }
+
         super.terminate();
     }
 
     /** START */
     protected static MMU mmu = new MMU();
 
-    public static void handleTLBMiss(int pid, int vpn) {
-        mmu.fetchEntryFromTable(pid, vpn);
+    /**
+     * Refill the TLB with the entry for a virtual page, first paging it in if it
+     * is not in memory.
+     */
+    public static void handleTLBMiss(VMProcess process, int vpn) {
+        // A resident page is refilled without the lock. Waiting for it would
+        // switch to whoever holds it, flushing the TLB, and processes missing
+        // in turn could each flush the other's entries forever.
+        boolean intStatus = Machine.interrupt().disable();
+        int ppn = MMU.pageTable.find(process.getPid(), vpn);
+        boolean resident = ppn != -1;
+        if (resident) {
+            mmu.fetchEntryFromTable(process.getPid(), vpn);
+            policy.accessed(ppn);
+        }
+        Machine.interrupt().restore(intStatus);
+
+        if (resident)
+            return;
+
+        vmLock.acquire();
+
+        if (MMU.pageTable.find(process.getPid(), vpn) == -1)
+            pageIn(process, vpn);
+        mmu.fetchEntryFromTable(process.getPid(), vpn);
+
+        vmLock.release();
+    }
+
+    public static void handlePageFault(VMProcess process, int vpn) {
+        handleTLBMiss(process, vpn);
+    }
+
+    /**
+     * Return the entry for a virtual page, paging it in if necessary, for the
+     * kernel to read or write it directly. The caller must hold
+     * <tt>vmLock</tt> until it is done with the page.
+     */
+    public static TranslationEntry getPage(VMProcess process, int vpn, boolean isWrite) {
+        Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+        int ppn = MMU.pageTable.find(process.getPid(), vpn);
+        if (ppn == -1)
+            ppn = pageIn(process, vpn);
+
+        TranslationEntry entry = new TranslationEntry();
+        MMU.pageTable.copyEntry(ppn, entry);
+
+        if (!(entry.readOnly && isWrite))
+            MMU.pageTable.markUsed(ppn, isWrite);
+
+        return entry;
+    }
+
+    /**
+     * Copy the used and dirty bits of a TLB entry back to the page table, if it
+     * still maps the same page of the process its ASID names.
+     */
+    public static void writeBack(TranslationEntry entry) {
+        if ((entry.used || entry.dirty) && MMU.pageTable.find(entry.asid, entry.vpn) == entry.ppn)
+            MMU.pageTable.markUsed(entry.ppn, entry.dirty);
     }
 
-    public static void handlePageFault(int pid, int vpn) {
-        System.out.println("UNHADLED PAGE FAULT");
+    /**
+     * Invalidate every TLB entry of a process, on every core. Entries stay in
+     * the TLB across context switches, tagged with their process's pid, so they
+     * must be removed when it exits.
+     */
+    public static void invalidateTLB(int pid) {
+        for (int core = 0; core < Machine.numCores(); core++) {
+            Processor processor = Machine.processor(core);
+            for (int i = 0; i < processor.getTLBSize(); i++) {
+                TranslationEntry tlbEntry = processor.readTLBEntry(i);
+                if (tlbEntry.valid && tlbEntry.asid == pid) {
+                    tlbEntry.valid = false;
+                    processor.writeTLBEntry(i, tlbEntry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Free every page of a process, in memory and in the swap file.
+     */
+    public static void releasePages(VMProcess process, int[] swapSlots) {
+        vmLock.acquire();
+
+        for (int vpn = 0; vpn < swapSlots.length; vpn++) {
+            int ppn = MMU.pageTable.find(process.getPid(), vpn);
+            if (ppn != -1) {
+                mmu.removeEntry(process.getPid(), vpn);
+                frameOwners[ppn] = null;
+                policy.release(ppn);
+                releasePage(ppn);
+            }
+
+            if (swapSlots[vpn] != -1) {
+                freeSwapSlots.add(swapSlots[vpn]);
+                swapSlots[vpn] = -1;
+            }
+        }
+
+        vmLock.release();
+    }
+
+    /**
+     * Bring a virtual page into a free frame, evicting another page if there is
+     * none. A page that has been evicted dirty is read back from the swap file,
+     * a page of the executable is loaded from it, and any other page is
+     * zero-filled.
+     */
+    private static int pageIn(VMProcess process, int vpn) {
+        Machine.processor().countPageFault();
+
+        int ppn = allocateFrame(process, vpn);
+
+        boolean readOnly = false;
+
+        int slot = process.getSwapSlot(vpn);
+        CoffSection section = process.getSection(vpn);
+        if (slot != -1) {
+            Lib.debug(dbgVM, "\tswapping in vpn " + vpn + " of process " + process.getPid() + " from slot " + slot);
+            readSwap(slot, ppn);
+            readOnly = (section != null && section.isReadOnly());
+        } else if (section != null) {
+            Lib.debug(dbgVM, "\tloading vpn " + vpn + " of process " + process.getPid() + " from " + section.getName());
+            section.loadPage(vpn - section.getFirstVPN(), ppn);
+            readOnly = section.isReadOnly();
+        } else {
+            Lib.debug(dbgVM, "\tzero-filling vpn " + vpn + " of process " + process.getPid());
+            zeroFill(ppn);
+        }
+
+        frameOwners[ppn] = process;
+        mmu.addEntry(process.getPid(), new TranslationEntry(vpn, ppn, true, readOnly, false, false));
+        policy.pageIn(ppn, process.getPid(), vpn);
+
+        return ppn;
+    }
+
+    private static int allocateFrame(VMProcess process, int vpn) {
+        Machine.interrupt().disable();
+        boolean free = !pageList.isEmpty();
+        int ppn = free ? pageList.removeFirst() : -1;
+        Machine.interrupt().enable();
+
+        if (free)
+            return ppn;
+
+        syncTLB();
+        ppn = policy.selectVictim(process.getPid(), vpn);
+        evict(ppn);
+
+        return ppn;
+    }
+
+    /**
+     * Copy the used and dirty bits of every TLB entry to the page table, and
+     * clear the used bits in the TLB, so the policy sees which pages have been
+     * used since it last looked.
+     */
+    private static void syncTLB() {
+        for (int core = 0; core < Machine.numCores(); core++) {
+            Processor processor = Machine.processor(core);
+            for (int i = 0; i < processor.getTLBSize(); i++) {
+                TranslationEntry tlbEntry = processor.readTLBEntry(i);
+                if (tlbEntry.valid && tlbEntry.used) {
+                    writeBack(tlbEntry);
+                    tlbEntry.used = false;
+                    processor.writeTLBEntry(i, tlbEntry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Take a frame away from the page in it, writing the page to the swap file
+     * first if it has been written since it was paged in.
+     */
+    private static void evict(int ppn) {
+        VMProcess owner = frameOwners[ppn];
+        Lib.assertTrue(owner != null);
+
+        // any core's TLB may still map the page, with newer bits than ours
+        for (int core = 0; core < Machine.numCores(); core++) {
+            Processor processor = Machine.processor(core);
+            for (int i = 0; i < processor.getTLBSize(); i++) {
+                TranslationEntry tlbEntry = processor.readTLBEntry(i);
+                if (tlbEntry.valid && tlbEntry.ppn == ppn) {
+                    writeBack(tlbEntry);
+                    tlbEntry.valid = false;
+                    processor.writeTLBEntry(i, tlbEntry);
+                }
+            }
+        }
+
+        TranslationEntry entry = new TranslationEntry();
+        MMU.pageTable.copyEntry(ppn, entry);
+
+        // unmap the page first, so the owner cannot write it while it is
+        // being copied out; it will wait for vmLock to page it back in
+        mmu.removeEntry(owner.getPid(), entry.vpn);
+        frameOwners[ppn] = null;
+
+        if (entry.dirty) {
+            int slot = owner.getSwapSlot(entry.vpn);
+            if (slot == -1) {
+                slot = freeSwapSlots.isEmpty() ? numSwapSlots++ : freeSwapSlots.removeFirst();
+                owner.setSwapSlot(entry.vpn, slot);
+            }
+
+            Lib.debug(dbgVM, "\tswapping out vpn " + entry.vpn + " of process " + owner.getPid() + " to slot " + slot);
+            writeSwap(slot, ppn);
+        }
+    }
+
+    private static void readSwap(int slot, int ppn) {
+        int length = swapFile.read(slot * pageSize, swapBuffer, 0, pageSize);
+        Lib.assertTrue(length == pageSize, "swap file read failed");
+
+        ByteBuffer memory = Machine.processor().getMemoryBuffer();
+        memory.position(ppn * pageSize);
+        memory.put(swapBuffer);
+
+        Machine.processor().invalidatePage(ppn);
+    }
+
+    private static void writeSwap(int slot, int ppn) {
+        ByteBuffer memory = Machine.processor().getMemoryBuffer();
+        memory.position(ppn * pageSize);
+        memory.get(swapBuffer);
+
+        int length = swapFile.write(slot * pageSize, swapBuffer, 0, pageSize);
+        Lib.assertTrue(length == pageSize, "swap file write failed");
+    }
+
+    private static void zeroFill(int ppn) {
+        Arrays.fill(swapBuffer, (byte) 0);
+
+        ByteBuffer memory = Machine.processor().getMemoryBuffer();
+        memory.position(ppn * pageSize);
+        memory.put(swapBuffer);
+
+        Machine.processor().invalidatePage(ppn);
     }
 
     public static void addPageTableEntry(int pid, TranslationEntry entry) {
@@ -72,19 +339,20 @@ public class VMKernel extends UserKernel {
         Machine.interrupt().enable();
     }
 
-    public static int [] allocatePages (int numPages) {
-        Machine.interrupt().disable();
-        int [] allocated = new int[numPages];
-        if (numPages > pageList.size()) {
-            Machine.interrupt().enable();
-            return null;
-        }
-        for (int i = 0; i < numPages; i++) {
-            allocated[i] = pageList.removeFirst();
-        }
-        Machine.interrupt().enable();
-        return allocated;
-    }
+    /** Held while paging, and while the kernel copies to or from user pages. */
+    public static Lock vmLock;
+
+    /** The process whose page is in each frame, or <tt>null</tt>. */
+    private static VMProcess[] frameOwners;
+    /** Chooses which frame to evict when none is free. */
+    private static PageReplacementPolicy policy;
+
+    private static OpenFile swapFile;
+    private static String swapFileName;
+    private static int numSwapSlots = 0;
+    private static LinkedList<Integer> freeSwapSlots = new LinkedList<>();
+    private static byte[] swapBuffer = new byte[Processor.pageSize];
+    private static final int pageSize = Processor.pageSize;
     /** FINISH */
 
     // dummy variables to make javac smarter
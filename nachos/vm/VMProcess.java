@@ -5,6 +5,8 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
  */
@@ -23,12 +25,7 @@ public class VMProcess extends UserProcess {
      */
     public void saveState() {
         super.saveState();
-        // invalidate current TLB
-        for (int i = 0; i < Machine.processor().getTLBSize(); i++) {
-            TranslationEntry entry = new TranslationEntry();
-            entry.valid = false;
-            Machine.processor().writeTLBEntry(i, entry);
-        }
+        // our TLB entries are tagged with our pid, so they can stay
     }
 
     /**
@@ -37,50 +34,29 @@ public class VMProcess extends UserProcess {
      */
     public void restoreState() {
         // super.restoreState();
+        // only our entries translate, on whichever core we are resumed on
+        Machine.processor().setASID(pid);
     }
 
     /**
      * Initializes page tables for this process so that the executable can be
-     * demand-paged.
+     * demand-paged. Nothing is loaded here: each page is brought in by
+     * <tt>VMKernel</tt> the first time it is touched.
      *
      * @return <tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-        // Allocate physical pages from Kernel. 
-        //      The requested number of pages = Number of pages occupied by this process
-        int [] ppns = VMKernel.allocatePages(numPages);
-
-        // Unable to allocate physical pages. Terminate user program(.coff)
-        if (ppns == null) {
-            coff.close();
-            Lib.debug(dbgProcess, "\tinsufficient physical memory");
-            return false;
-        }
+        // no page has been swapped out yet
+        swapSlots = new int[numPages];
+        Arrays.fill(swapSlots, -1);
 
-        // load sections
         for (int s = 0; s < coff.getNumSections(); s++) {
             CoffSection section = coff.getSection(s);
 
             Lib.debug(dbgProcess,
-                    "\tinitializing " + section.getName() + " section (" + section.getLength() + " pages)");
-
-            // For contiguous vpns
-            for (int i = 0; i < section.getLength(); i++) {
-                int vpn = section.getFirstVPN() + i;
-                // Retrieve physical page number
-                int ppn = ppns[vpn];
-
-                VMKernel.addPageTableEntry(pid, new TranslationEntry(vpn, ppn, true, section.isReadOnly(), false, false));
-
-                section.loadPage(i, ppn);
-            }
+                    "\tdeferring " + section.getName() + " section (" + section.getLength() + " pages)");
         }
 
-        // allocate free pages for stack and argv
-        for (int i = numPages - stackPages - 1; i < numPages; i++) {
-			VMKernel.addPageTableEntry(pid, new TranslationEntry(i, ppns[i], true, false, false, false));
-		}
-
         return true;
     }
 
@@ -88,61 +64,105 @@ public class VMProcess extends UserProcess {
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
+        // our entries must not outlive the frames they point to
+        VMKernel.invalidateTLB(pid);
+
+        VMKernel.releasePages(this, swapSlots);
         coff.close();
-        for (int i = 0; i < numPages; i++) {
-            TranslationEntry entry = VMKernel.removePageTableEntry(pid, i);
-            VMKernel.releasePage(entry.ppn);
-        }
     }
 
     /**
-     * Retrieve translation entry for the virtual page number. First
-     * It also sets necessary bits based on whether the page is writable.
+     * Hold <tt>VMKernel.vmLock</tt> while copying, so that no page is evicted
+     * between translating it and reading it.
+     */
+    public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
+        VMKernel.vmLock.acquire();
+        int amount = super.readVirtualMemory(vaddr, data, offset, length);
+        VMKernel.vmLock.release();
+
+        return amount;
+    }
+
+    /**
+     * Hold <tt>VMKernel.vmLock</tt> while copying, so that no page is evicted
+     * between translating it and writing it.
+     */
+    public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
+        VMKernel.vmLock.acquire();
+        int amount = super.writeVirtualMemory(vaddr, data, offset, length);
+        VMKernel.vmLock.release();
+
+        return amount;
+    }
+
+    /**
+     * Retrieve translation entry for the virtual page number, paging it in if
+     * it is not in memory, and mark it used (and dirty, for a write). Called
+     * with <tt>VMKernel.vmLock</tt> held.
      * @param vpn   Virtual Page Number
      * @param isWrite   Is this page for write?
-     * @return  The TranslationEntry for the vpn. If not found, returns null
+     * @return  The TranslationEntry for the vpn. If the vpn is out of range or
+     *          the page is read-only and isWrite is set, returns null
      */
     protected TranslationEntry getTranslationEntry(int vpn, boolean isWrite) {
         // Virtual page number must be non-negative and less than number of pages occupied by this process
         if (vpn < 0 || vpn >= numPages) return null;
 
-        TranslationEntry entry = null;
+        // The TLB may hold newer used/dirty bits than the page table
         for (int i = 0; i < Machine.processor().getTLBSize(); i++) {
             TranslationEntry tlbEntry = Machine.processor().readTLBEntry(i);
-            if (tlbEntry.valid && tlbEntry.vpn == vpn) {
-                entry = tlbEntry;
-                break;
-            }
+            if (tlbEntry.valid && tlbEntry.vpn == vpn && tlbEntry.asid == pid)
+                VMKernel.writeBack(tlbEntry);
         }
 
-        if (entry == null) {
-            // FIXME - workaround to generate tlbMissException?
-            entry = VMKernel.mmu.fetchEntryFromTable(pid, vpn);
-        }
+        TranslationEntry entry = VMKernel.getPage(this, vpn, isWrite);
 
-        // No entry found for this vpn
-        if (entry == null) return null;
         // A read-only page cannot be used for write
-		if (entry.readOnly && isWrite) return null;
-        // This page is in use
-        entry.used = true;
-        // Set the dirty bit as this page is writable
-        if (isWrite)
-            entry.dirty = true;
-        
+        if (entry.readOnly && isWrite) return null;
+
         return entry;
     }
 
+    /**
+     * Return the section of the executable holding a virtual page, or
+     * <tt>null</tt> if the page is part of the stack or arguments.
+     */
+    protected CoffSection getSection(int vpn) {
+        for (int s = 0; s < coff.getNumSections(); s++) {
+            CoffSection section = coff.getSection(s);
+            if (vpn >= section.getFirstVPN() && vpn < section.getFirstVPN() + section.getLength())
+                return section;
+        }
+
+        return null;
+    }
+
+    protected int getPid() {
+        return pid;
+    }
+
+    /**
+     * Return the swap file slot holding a virtual page, or -1 if it has never
+     * been swapped out.
+     */
+    protected int getSwapSlot(int vpn) {
+        return swapSlots[vpn];
+    }
+
+    protected void setSwapSlot(int vpn, int slot) {
+        swapSlots[vpn] = slot;
+    }
+
     private void handleTLBMiss(int badVAddr) {
         int vpn = Processor.pageFromAddress(badVAddr);
         
-        VMKernel.handleTLBMiss(pid, vpn);
+        VMKernel.handleTLBMiss(this, vpn);
     }
 
     private void handlePageFault(int badVAddr) {
         int vpn = Processor.pageFromAddress(badVAddr);
         
-        VMKernel.handlePageFault(pid, vpn);
+        VMKernel.handlePageFault(this, vpn);
     }
 
     /**
@@ -157,6 +177,11 @@ public class VMProcess extends UserProcess {
         switch (cause) {
             case Processor.exceptionTLBMiss:
                 vaddr = Machine.processor().readRegister(Processor.regBadVAddr);
+                // an address outside the process is an error, not a miss
+                if (Processor.pageFromAddress(vaddr) >= numPages) {
+                    super.handleException(cause);
+                    break;
+                }
                 handleTLBMiss(vaddr);
                 break;
             
@@ -170,6 +195,9 @@ public class VMProcess extends UserProcess {
         }
     }
 
+    /** The swap file slot holding each virtual page, or -1. */
+    private int[] swapSlots;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';